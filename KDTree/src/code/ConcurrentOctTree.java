@@ -0,0 +1,214 @@
+package code;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Concurrent OctTree implementation
+ * Features :
+ * Insert : SingleNode insert, thread-safe, inserts into disjoint subtrees run in parallel
+ * Search : Range Search, can run alongside inserts
+ *
+ * Each node is locked on its own : a point is added to a node, or its
+ * children are created, while holding the node's monitor only. The point is
+ * stored before the volatile count is raised and the children are published
+ * through a volatile array, so a reader always sees fully inserted points.
+ * A query running alongside inserts returns every point inserted before it
+ * started, and possibly some of the concurrent ones.
+ * */
+public class ConcurrentOctTree {
+    final int SIZE = 8;
+
+    class Node {
+        final Cubiod boundary;
+        // grows past nodeCapacity only for points no subdivision can separate
+        volatile Point3D[] points;
+        // number of published points
+        volatile int count;
+        // null until the node is subdivided
+        volatile Node[] dirs;
+
+        public Node(Cubiod boundary) {
+            this.boundary = boundary;
+            points = new Point3D[nodeCapacity];
+        }
+    }
+
+    final Node root;
+    final int nodeCapacity;
+
+    public ConcurrentOctTree(Cubiod boundary, int nodeCapacity) {
+        if (nodeCapacity < 1)
+            throw new IllegalArgumentException("");
+        this.nodeCapacity = nodeCapacity;
+        root = new Node(boundary);
+    }
+
+    /*
+     * Returns false if p is outside the boundary. A full leaf holding only
+     * copies of p grows instead of being subdivided, and so does a node none
+     * of whose children contains p once the cells are too small to be split
+     * exactly, so coincident points are all kept.
+     */
+    public boolean insert(Point3D p) {
+        Node r = root;
+        if (!r.boundary.containsPoint(p))
+            return false;
+        while (true) {
+            Node[] dirs = r.dirs;
+            if (dirs == null)
+                synchronized (r) {
+                    int c = r.count;
+                    dirs = r.dirs;
+                    if (c < nodeCapacity || dirs == null && duplicates(r, c, p)) {
+                        add(r, c, p);
+                        return true;
+                    }
+                    if (dirs == null)
+                        r.dirs = dirs = subdivide(r);
+                }
+            // Same child as OctTree.insert, the first one containing p
+            Node next = null;
+            for (int i = 0; i < SIZE && next == null; i++)
+                if (dirs[i].boundary.containsPoint(p))
+                    next = dirs[i];
+            if (next == null)
+                synchronized (r) {
+                    add(r, r.count, p);
+                    return true;
+                }
+            r = next;
+        }
+    }
+
+    // Store p as point c of r, the caller holds the monitor of r
+    private static void add(Node r, int c, Point3D p) {
+        Point3D[] points = r.points;
+        if (c == points.length) {
+            points = Arrays.copyOf(points, c * 2);
+            points[c] = p;
+            // the larger array is published before the count
+            r.points = points;
+        } else
+            points[c] = p;
+        r.count = c + 1;
+    }
+
+    // Whether the c points of r are all at the same place as p
+    private static boolean duplicates(Node r, int c, Point3D p) {
+        for (int i = 0; i < c; i++) {
+            Point3D q = r.points[i];
+            if (q.x != p.x || q.y != p.y || q.z != p.z)
+                return false;
+        }
+        return true;
+    }
+
+    private Node[] subdivide(Node r) {
+        Point3D min = r.boundary.min;
+        double len = r.boundary.length / 2.0;
+        Node[] dirs = new Node[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            Point3D m = new Point3D(min.x + ((i & 1) > 0 ? len : 0), min.y + ((i & 2) > 0 ? len : 0), min.z + ((i & 4) > 0 ? len : 0));
+            dirs[i] = new Node(new Cubiod(m, len));
+        }
+        return dirs;
+    }
+
+    public Set<Point3D> queryRange(Cubiod range) {
+        final Set<Point3D> res = new HashSet<Point3D>();
+        queryRange(range, new PointVisitor<Point3D>() {
+            @Override
+            public boolean visit(Point3D p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    // Visitor form of queryRange, safe alongside inserts as in ConcurrentQuadTree
+    public boolean queryRange(Cubiod range, PointVisitor<Point3D> visitor) {
+        return queryRange(root, range, visitor);
+    }
+
+    // Same traversal as ConcurrentQuadTree, dirs is read once per node since an insert may set it meanwhile
+    private boolean queryRange(Node root, Cubiod range, PointVisitor<Point3D> visitor) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range))
+                    continue;
+                int count = r.count;
+                Point3D[] points = r.points;
+                for (int i = 0; i < count; i++) {
+                    Point3D p = points[i];
+                    if (range.containsPoint(p) && !visitor.visit(p))
+                        return false;
+                }
+                Node[] dirs = r.dirs;
+                if (dirs != null)
+                    for (int i = SIZE - 1; i >= 0; i--)
+                        st.push(dirs[i], 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    public int rangeCount(Cubiod range) {
+        return rangeCount(root, range);
+    }
+
+    private int rangeCount(Node root, Cubiod range) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            int res = 0;
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range))
+                    continue;
+                int count = r.count;
+                Point3D[] points = r.points;
+                for (int i = 0; i < count; i++)
+                    if (range.containsPoint(points[i]))
+                        res++;
+                Node[] dirs = r.dirs;
+                if (dirs != null)
+                    for (int i = SIZE - 1; i >= 0; i--)
+                        st.push(dirs[i], 0, 0);
+            }
+            return res;
+        } finally {
+            st.release();
+        }
+    }
+
+    // Coincident points inserted from several threads must all be kept
+    public static void main(String[] args) throws InterruptedException {
+        final ConcurrentOctTree tree = new ConcurrentOctTree(new Cubiod(new Point3D(0, 0, 0), 1), 4);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        if (!tree.insert(new Point3D(0.3, 0.3, 0.3)))
+                            throw new IllegalStateException("coincident point rejected");
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        int count = tree.rangeCount(new Cubiod(new Point3D(0.2, 0.2, 0.2), 0.2));
+        if (count != 4000)
+            throw new IllegalStateException(count + " of 4000 coincident points found");
+        System.out.println(count + " coincident points found");
+    }
+}
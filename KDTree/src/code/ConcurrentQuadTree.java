@@ -0,0 +1,208 @@
+package code;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Concurrent QuadTree implementation
+ * Features :
+ * Insert : SingleNode insert, thread-safe, inserts into disjoint subtrees run in parallel
+ * Search : Range Search, can run alongside inserts
+ *
+ * Same locking as ConcurrentOctTree : one monitor per node, points published
+ * by a volatile count and children by a volatile array.
+ * */
+public class ConcurrentQuadTree {
+
+    class Node {
+        final Rect boundary;
+        // grows past nodeCapacity only for points no subdivision can separate
+        volatile Point2D[] points;
+        // number of published points
+        volatile int count;
+        // northWest, northEast, southWest, southEast, null until the node is subdivided
+        volatile Node[] dirs;
+
+        public Node(Rect boundary) {
+            this.boundary = boundary;
+            points = new Point2D[nodeCapacity];
+        }
+    }
+
+    final Node root;
+    final int nodeCapacity;
+
+    public ConcurrentQuadTree(Rect boundary, int nodeCapacity) {
+        if (nodeCapacity < 1)
+            throw new IllegalArgumentException("");
+        this.nodeCapacity = nodeCapacity;
+        root = new Node(boundary);
+    }
+
+    /*
+     * Returns false if p is outside the boundary. A full leaf holding only
+     * copies of p grows instead of being subdivided, and so does a node none
+     * of whose children contains p once the cells are too small to be split
+     * exactly, so coincident points are all kept.
+     */
+    public boolean insert(Point2D p) {
+        Node r = root;
+        if (!r.boundary.containsPoint(p))
+            return false;
+        while (true) {
+            Node[] dirs = r.dirs;
+            if (dirs == null)
+                synchronized (r) {
+                    int c = r.count;
+                    dirs = r.dirs;
+                    if (c < nodeCapacity || dirs == null && duplicates(r, c, p)) {
+                        add(r, c, p);
+                        return true;
+                    }
+                    if (dirs == null)
+                        r.dirs = dirs = subdivide(r);
+                }
+            // Same child as QuadTree.insert, the first one containing p
+            Node next = null;
+            for (int i = 0; i < dirs.length && next == null; i++)
+                if (dirs[i].boundary.containsPoint(p))
+                    next = dirs[i];
+            if (next == null)
+                synchronized (r) {
+                    add(r, r.count, p);
+                    return true;
+                }
+            r = next;
+        }
+    }
+
+    // Store p as point c of r, the caller holds the monitor of r
+    private static void add(Node r, int c, Point2D p) {
+        Point2D[] points = r.points;
+        if (c == points.length) {
+            points = Arrays.copyOf(points, c * 2);
+            points[c] = p;
+            // the larger array is published before the count
+            r.points = points;
+        } else
+            points[c] = p;
+        r.count = c + 1;
+    }
+
+    // Whether the c points of r are all at the same place as p
+    private static boolean duplicates(Node r, int c, Point2D p) {
+        for (int i = 0; i < c; i++) {
+            Point2D q = r.points[i];
+            if (q.x != p.x || q.y != p.y)
+                return false;
+        }
+        return true;
+    }
+
+    private Node[] subdivide(Node p) {
+        Rect r = p.boundary;
+        double nlength = r.length / 2;
+        Point2D min = r.min;
+        Point2D nwMin = new Point2D(min.x, min.y + nlength), neMin = new Point2D(min.x + nlength, min.y + nlength);
+        Point2D swMin = min, seMin = new Point2D(min.x + nlength, min.y);
+        return new Node[] { new Node(new Rect(nwMin, nlength)), new Node(new Rect(neMin, nlength)), new Node(new Rect(swMin, nlength)),
+                new Node(new Rect(seMin, nlength)) };
+    }
+
+    public Set<Point2D> queryRange(Rect range) {
+        final Set<Point2D> res = new HashSet<Point2D>();
+        queryRange(range, new PointVisitor<Point2D>() {
+            @Override
+            public boolean visit(Point2D p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    // Visitor form of queryRange, may run alongside inserts
+    public boolean queryRange(Rect range, PointVisitor<Point2D> visitor) {
+        return queryRange(root, range, visitor);
+    }
+
+    // Iterative, count is read before points so only published points are visited
+    private boolean queryRange(Node root, Rect range, PointVisitor<Point2D> visitor) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range))
+                    continue;
+                int count = r.count;
+                Point2D[] points = r.points;
+                for (int i = 0; i < count; i++) {
+                    Point2D p = points[i];
+                    if (range.containsPoint(p) && !visitor.visit(p))
+                        return false;
+                }
+                Node[] dirs = r.dirs;
+                if (dirs != null)
+                    for (int i = dirs.length - 1; i >= 0; i--)
+                        st.push(dirs[i], 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    public int rangeCount(Rect range) {
+        return rangeCount(root, range);
+    }
+
+    private int rangeCount(Node root, Rect range) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            int res = 0;
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range))
+                    continue;
+                int count = r.count;
+                Point2D[] points = r.points;
+                for (int i = 0; i < count; i++)
+                    if (range.containsPoint(points[i]))
+                        res++;
+                Node[] dirs = r.dirs;
+                if (dirs != null)
+                    for (int i = dirs.length - 1; i >= 0; i--)
+                        st.push(dirs[i], 0, 0);
+            }
+            return res;
+        } finally {
+            st.release();
+        }
+    }
+
+    // Coincident points inserted from several threads must all be kept
+    public static void main(String[] args) throws InterruptedException {
+        final ConcurrentQuadTree tree = new ConcurrentQuadTree(new Rect(new Point2D(0, 0), 1), 4);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++)
+                        if (!tree.insert(new Point2D(0.3, 0.3)))
+                            throw new IllegalStateException("coincident point rejected");
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        int count = tree.rangeCount(new Rect(new Point2D(0.2, 0.2), 0.2));
+        if (count != 4000)
+            throw new IllegalStateException(count + " of 4000 coincident points found");
+        System.out.println(count + " coincident points found");
+    }
+}
@@ -0,0 +1,81 @@
+package code;
+
+/*
+ * Distance kernels on flat coordinate arrays
+ * The loops are unrolled by 4 with independent accumulators, which shortens
+ * the chain of dependent additions, and do no dimension checks. They are
+ * not auto-vectorized by the JIT, it does not reorder these floating point
+ * sums. Callers check the dimensions once per query.
+ * */
+final class DistanceKernels {
+    // Below 2^K points a kd tree prunes little, a linear scan is used instead.
+    // Only for the flat layouts, ImplicitKDTree and FloatKDTree : the nodes of
+    // KDTree are not contiguous, a scan of them costs as much as the search.
+    static final int BRUTE_FORCE_K = 16;
+
+    private DistanceKernels() {
+    }
+
+    static boolean bruteForce(int K, int n) {
+        return K >= BRUTE_FORCE_K && (K >= 31 || n < (1 << K));
+    }
+
+    // Square distance between a[aoff .. aoff + K) and b[boff .. boff + K)
+    static double squareDistance(double[] a, int aoff, double[] b, int boff, int K) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < K; k += 4) {
+            double d0 = a[aoff + k] - b[boff + k];
+            double d1 = a[aoff + k + 1] - b[boff + k + 1];
+            double d2 = a[aoff + k + 2] - b[boff + k + 2];
+            double d3 = a[aoff + k + 3] - b[boff + k + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; k < K; k++) {
+            double d = a[aoff + k] - b[boff + k];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Float differences, double accumulation
+    static double squareDistance(float[] a, int aoff, float[] b, int boff, int K) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < K; k += 4) {
+            float d0 = a[aoff + k] - b[boff + k];
+            float d1 = a[aoff + k + 1] - b[boff + k + 1];
+            float d2 = a[aoff + k + 2] - b[boff + k + 2];
+            float d3 = a[aoff + k + 3] - b[boff + k + 3];
+            s0 += (double) d0 * d0;
+            s1 += (double) d1 * d1;
+            s2 += (double) d2 * d2;
+            s3 += (double) d3 * d3;
+        }
+        for (; k < K; k++) {
+            float d = a[aoff + k] - b[boff + k];
+            s0 += (double) d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // Square distance from p to the closest point of the box [lo, hi], branch free
+    static double boxSquareDistance(double[] lo, double[] hi, double[] p, int K) {
+        double s0 = 0, s1 = 0;
+        int k = 0;
+        for (; k + 1 < K; k += 2) {
+            double d0 = Math.max(0, Math.max(lo[k] - p[k], p[k] - hi[k]));
+            double d1 = Math.max(0, Math.max(lo[k + 1] - p[k + 1], p[k + 1] - hi[k + 1]));
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+        }
+        if (k < K) {
+            double d = Math.max(0, Math.max(lo[k] - p[k], p[k] - hi[k]));
+            s0 += d * d;
+        }
+        return s0 + s1;
+    }
+}
@@ -0,0 +1,543 @@
+package code;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Dual tree K Nearest Neighbor join
+ * Features :
+ * Finds the k nearest points of the reference tree for every point of the
+ * query tree by walking both trees at once
+ * Parallel : disjoint query subtrees are joined in a ForkJoinPool
+ * Refer to https://en.wikipedia.org/wiki/Nearest_neighbor_search#All_nearest_neighbors
+ *
+ * Both trees are copied into flat arrays over their nodes, numbered in
+ * pre-order : every node has the tight box and the contiguous range of the
+ * points of its subtree, subtrees of at most LEAF_SIZE points are leaves and
+ * the splitting point of an inner node is a leaf of its own. The copies are
+ * kept until the version of their tree changes.
+ * The traversal pops pairs of a query node and a reference node from an
+ * explicit stack. A pair is pruned when the distance between the two boxes
+ * is not smaller than the bound of the query node. Else the node with the
+ * larger box is split, nearer reference children first, down to pairs of
+ * leaves whose points are compared, the query nodes of more than PAIR_SIZE
+ * points being always split first. The bound of a query leaf is the largest
+ * k-th best distance of its points, or the smallest one plus the diameter
+ * of the leaf (triangle inequality). It is cached per node, and the bound of
+ * an inner node, the largest of its children, is only refreshed when one of
+ * its pairs is popped. The k best of every query point are kept in flat
+ * heaps.
+ * */
+public class DualTreeJoin {
+    // Subtrees of at most LEAF_SIZE points are leaves of the flat trees
+    static final int LEAF_SIZE = 32;
+    // Query nodes of more points are split first, their bounds seldom prune
+    static final int PAIR_SIZE = 4 * LEAF_SIZE;
+
+    final KDTree query, reference;
+    final int K;
+    // flat copies and the tree versions they were made from
+    private Flat qflat, rflat;
+    private long qversion, rversion;
+
+    public DualTreeJoin(KDTree query, KDTree reference) {
+        if (query.K != reference.K)
+            throw new IllegalArgumentException("");
+        this.query = query;
+        this.reference = reference;
+        K = query.K;
+    }
+
+    /*
+     * The k nearest reference points of every query point, sorted by distance.
+     * Keys are compared by identity, so equal query points get one entry each.
+     */
+    public Map<HyperPoint, HyperPoint[]> kNearest(int k) {
+        Join j = join(k);
+        if (j.q.count > 0 && j.r.count > 0)
+            new Search(j).run(0);
+        return j.result();
+    }
+
+    // Nearest reference point of every query point
+    public Map<HyperPoint, HyperPoint> allNearest() {
+        Map<HyperPoint, HyperPoint> res = new IdentityHashMap<HyperPoint, HyperPoint>();
+        for (Map.Entry<HyperPoint, HyperPoint[]> e : kNearest(1).entrySet())
+            res.put(e.getKey(), e.getValue().length == 0 ? null : e.getValue()[0]);
+        return res;
+    }
+
+    public Map<HyperPoint, HyperPoint[]> kNearestParallel(int k) {
+        return kNearestParallel(k, ForkJoinPool.commonPool());
+    }
+
+    // Parallel version of kNearest, query subtrees are disjoint so they are joined in separate tasks
+    public Map<HyperPoint, HyperPoint[]> kNearestParallel(int k, ForkJoinPool pool) {
+        Join j = join(k);
+        if (j.q.count > 0 && j.r.count > 0) {
+            int threshold = Math.max(LEAF_SIZE, j.q.points.length / (pool.getParallelism() * 8));
+            int[] roots = j.q.cut(threshold);
+            pool.invoke(new JoinTask(j, roots, 0, roots.length));
+        }
+        return j.result();
+    }
+
+    class JoinTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        Join j;
+        int[] roots;
+        int beg, end;
+
+        JoinTask(Join j, int[] roots, int beg, int end) {
+            this.j = j;
+            this.roots = roots;
+            this.beg = beg;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - beg == 1) {
+                new Search(j).run(roots[beg]);
+                return;
+            }
+            int mid = (beg + end) >>> 1;
+            invokeAll(new JoinTask(j, roots, beg, mid), new JoinTask(j, roots, mid, end));
+        }
+    }
+
+    private Join join(int k) {
+        if (k <= 0)
+            throw new IllegalArgumentException("");
+        Flat q, r;
+        synchronized (this) {
+            long v = query.version();
+            if (qflat == null || qversion != v) {
+                qflat = new Flat(query);
+                qversion = v;
+            }
+            v = reference.version();
+            if (rflat == null || rversion != v) {
+                rflat = new Flat(reference);
+                rversion = v;
+            }
+            q = qflat;
+            r = rflat;
+        }
+        return new Join(q, r, k);
+    }
+
+    /*
+     * Tree in flat arrays : node f has its children in child[3 * f .. 3 * f
+     * + 2] (-1 if none), the points [beg[f], end[f]) of coords and points,
+     * and the tight box lo/hi[f * K .. f * K + K - 1] of its subtree. The
+     * children of a node come after it.
+     */
+    static class Flat {
+        final int K;
+        int[] child, beg, end;
+        // boxes and their square diameters
+        double[] lo, hi, diameter, coords;
+        HyperPoint[] points;
+        int count;
+
+        Flat(KDTree tree) {
+            K = tree.K;
+            // Pre-order numbering of the nodes, nodes[i] has its subtree in ids [i, i + span[i])
+            int n = 0;
+            KDTree.Node[] nodes = new KDTree.Node[16];
+            TraversalStack st = TraversalStack.acquire();
+            try {
+                if (tree.root != null)
+                    st.push(tree.root, 0, 0);
+                while (!st.isEmpty()) {
+                    KDTree.Node r = (KDTree.Node) st.pop();
+                    if (n == nodes.length)
+                        nodes = Arrays.copyOf(nodes, n * 2);
+                    nodes[n++] = r;
+                    if (r.right != null)
+                        st.push(r.right, 0, 0);
+                    if (r.left != null)
+                        st.push(r.left, 0, 0);
+                }
+            } finally {
+                st.release();
+            }
+            int[] size = new int[n], span = new int[n];
+            for (int i = n - 1; i >= 0; i--) {
+                KDTree.Node r = nodes[i];
+                size[i] = r.isLeaf() ? r.count : 1;
+                span[i] = 1;
+                if (r.left != null) {
+                    size[i] += size[i + 1];
+                    span[i] += span[i + 1];
+                }
+                if (r.right != null) {
+                    int c = i + 1 + (r.left != null ? span[i + 1] : 0);
+                    size[i] += size[c];
+                    span[i] += span[c];
+                }
+            }
+            int total = n == 0 ? 0 : size[0];
+            points = new HyperPoint[total];
+            // an inner node and its splitting point are two flat nodes
+            int max = 2 * n;
+            child = new int[3 * max];
+            beg = new int[max];
+            end = new int[max];
+            Arrays.fill(child, -1);
+            int[] flat = new int[n];
+            int p = 0;
+            for (int i = 0; i < n;) {
+                if (size[i] == 0) {
+                    i += span[i];
+                    continue;
+                }
+                int f = flat[i] = count++;
+                beg[f] = p;
+                end[f] = p + size[i];
+                KDTree.Node r = nodes[i];
+                if (size[i] <= LEAF_SIZE || r.isLeaf()) {
+                    for (int j = i; j < i + span[i]; j++) {
+                        KDTree.Node c = nodes[j];
+                        if (c.isLeaf())
+                            for (int b = 0; b < c.count; b++)
+                                points[p++] = c.bucket[b];
+                        else
+                            points[p++] = c.p;
+                    }
+                    i += span[i];
+                    continue;
+                }
+                int s = count++;
+                beg[s] = p;
+                end[s] = p + 1;
+                points[p++] = r.p;
+                child[3 * f] = s;
+                i++;
+            }
+            // link the inner nodes to the flat copies of their children
+            for (int i = 0; i < n; i++) {
+                KDTree.Node r = nodes[i];
+                if (size[i] == 0 || size[i] <= LEAF_SIZE || r.isLeaf())
+                    continue;
+                int f = flat[i];
+                if (r.left != null && size[i + 1] > 0)
+                    child[3 * f + 1] = flat[i + 1];
+                int c = i + 1 + (r.left != null ? span[i + 1] : 0);
+                if (r.right != null && size[c] > 0)
+                    child[3 * f + 2] = flat[c];
+            }
+            coords = new double[total * K];
+            for (int j = 0; j < total; j++)
+                System.arraycopy(points[j].coords, 0, coords, j * K, K);
+            lo = new double[count * K];
+            hi = new double[count * K];
+            diameter = new double[count];
+            for (int f = count - 1; f >= 0; f--) {
+                int o = f * K;
+                if (child[3 * f] < 0) {
+                    System.arraycopy(coords, beg[f] * K, lo, o, K);
+                    System.arraycopy(coords, beg[f] * K, hi, o, K);
+                    for (int j = beg[f] + 1; j < end[f]; j++)
+                        for (int d = 0; d < K; d++) {
+                            lo[o + d] = Math.min(lo[o + d], coords[j * K + d]);
+                            hi[o + d] = Math.max(hi[o + d], coords[j * K + d]);
+                        }
+                    continue;
+                }
+                System.arraycopy(lo, child[3 * f] * K, lo, o, K);
+                System.arraycopy(hi, child[3 * f] * K, hi, o, K);
+                for (int c = 1; c < 3; c++) {
+                    int g = child[3 * f + c];
+                    if (g >= 0)
+                        for (int d = 0; d < K; d++) {
+                            lo[o + d] = Math.min(lo[o + d], lo[g * K + d]);
+                            hi[o + d] = Math.max(hi[o + d], hi[g * K + d]);
+                        }
+                }
+            }
+            for (int f = 0; f < count; f++)
+                for (int d = f * K; d < f * K + K; d++)
+                    diameter[f] += (hi[d] - lo[d]) * (hi[d] - lo[d]);
+        }
+
+        boolean isLeaf(int f) {
+            return child[3 * f] < 0;
+        }
+
+        int size(int f) {
+            return end[f] - beg[f];
+        }
+
+        // Nodes splitting the tree into subtrees of at most threshold points, or leaves
+        int[] cut(int threshold) {
+            int[] res = new int[16], stack = new int[64];
+            int n = 0, top = 0;
+            stack[top++] = 0;
+            while (top > 0) {
+                int f = stack[--top];
+                if (isLeaf(f) || size(f) <= threshold) {
+                    if (n == res.length)
+                        res = Arrays.copyOf(res, n * 2);
+                    res[n++] = f;
+                    continue;
+                }
+                if (top + 3 > stack.length)
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                for (int c = 2; c >= 0; c--)
+                    if (child[3 * f + c] >= 0)
+                        stack[top++] = child[3 * f + c];
+            }
+            return Arrays.copyOf(res, n);
+        }
+    }
+
+    /*
+     * State of one join : the flat heaps of the query points, the k best
+     * distances and reference indexes of point i in dist/index[i * k ..
+     * i * k + k - 1] as a max heap of size[i] entries, and the cached bounds
+     * of the query nodes
+     */
+    static class Join {
+        final Flat q, r;
+        final int k;
+        final double[] dist, bound;
+        final int[] index, size;
+
+        Join(Flat q, Flat r, int k) {
+            this.q = q;
+            this.r = r;
+            this.k = k;
+            int n = q.points.length;
+            dist = new double[n * k];
+            index = new int[n * k];
+            size = new int[n];
+            bound = new double[q.count];
+            Arrays.fill(bound, Double.POSITIVE_INFINITY);
+        }
+
+        double worst(int i) {
+            return size[i] < k ? Double.POSITIVE_INFINITY : dist[i * k];
+        }
+
+        // Keep reference point j at square distance d from query point i if it is among the k best
+        void offer(int i, int j, double d) {
+            int o = i * k, n = size[i];
+            if (n < k) {
+                // sift up
+                int c = n;
+                while (c > 0) {
+                    int p = (c - 1) / 2;
+                    if (dist[o + p] >= d)
+                        break;
+                    dist[o + c] = dist[o + p];
+                    index[o + c] = index[o + p];
+                    c = p;
+                }
+                dist[o + c] = d;
+                index[o + c] = j;
+                size[i] = n + 1;
+                return;
+            }
+            // replace the worst and sift down
+            int c = 0;
+            while (true) {
+                int l = 2 * c + 1;
+                if (l >= k)
+                    break;
+                if (l + 1 < k && dist[o + l + 1] > dist[o + l])
+                    l++;
+                if (dist[o + l] <= d)
+                    break;
+                dist[o + c] = dist[o + l];
+                index[o + c] = index[o + l];
+                c = l;
+            }
+            dist[o + c] = d;
+            index[o + c] = j;
+        }
+
+        // Sorted neighbors of every query point, the heaps are emptied
+        Map<HyperPoint, HyperPoint[]> result() {
+            Map<HyperPoint, HyperPoint[]> map = new IdentityHashMap<HyperPoint, HyperPoint[]>();
+            for (int i = 0; i < q.points.length; i++) {
+                int o = i * k, n = size[i];
+                HyperPoint[] nb = new HyperPoint[n];
+                // pop the worst into the last free slot
+                for (int m = n - 1; m >= 0; m--) {
+                    nb[m] = r.points[index[o]];
+                    double d = dist[o + m];
+                    int j = index[o + m], c = 0;
+                    while (true) {
+                        int l = 2 * c + 1;
+                        if (l >= m)
+                            break;
+                        if (l + 1 < m && dist[o + l + 1] > dist[o + l])
+                            l++;
+                        if (dist[o + l] <= d)
+                            break;
+                        dist[o + c] = dist[o + l];
+                        index[o + c] = index[o + l];
+                        c = l;
+                    }
+                    dist[o + c] = d;
+                    index[o + c] = j;
+                }
+                size[i] = 0;
+                map.put(q.points[i], nb);
+            }
+            return map;
+        }
+    }
+
+    // Traversal of the pairs below one query node, its stack is reused by every pair
+    class Search {
+        final Join j;
+        final Flat q, r;
+        int[] qs = new int[64], rs = new int[64];
+        double[] ds = new double[64];
+        int top;
+
+        Search(Join j) {
+            this.j = j;
+            q = j.q;
+            r = j.r;
+        }
+
+        void run(int root) {
+            push(root, 0, distance(root, 0));
+            while (top > 0) {
+                top--;
+                int a = qs[top], b = rs[top];
+                if (ds[top] >= bound(a))
+                    continue;
+                boolean qleaf = q.isLeaf(a), rleaf = r.isLeaf(b);
+                if (qleaf && rleaf) {
+                    base(a, b);
+                    continue;
+                }
+                if (qleaf || !rleaf && q.size(a) <= PAIR_SIZE && r.diameter[b] > q.diameter[a]) {
+                    // split the reference node, nearer children popped first
+                    int c0 = -1, c1 = -1, c2 = -1;
+                    double d0 = 0, d1 = 0, d2 = 0;
+                    double bnd = j.bound[a];
+                    for (int c = 0; c < 3; c++) {
+                        int g = r.child[3 * b + c];
+                        if (g < 0)
+                            continue;
+                        double d = distance(a, g);
+                        if (d >= bnd)
+                            continue;
+                        // insertion into the three slots, farthest first
+                        if (c0 < 0 || d > d0) {
+                            c2 = c1;
+                            d2 = d1;
+                            c1 = c0;
+                            d1 = d0;
+                            c0 = g;
+                            d0 = d;
+                        } else if (c1 < 0 || d > d1) {
+                            c2 = c1;
+                            d2 = d1;
+                            c1 = g;
+                            d1 = d;
+                        } else {
+                            c2 = g;
+                            d2 = d;
+                        }
+                    }
+                    if (c0 >= 0)
+                        push(a, c0, d0);
+                    if (c1 >= 0)
+                        push(a, c1, d1);
+                    if (c2 >= 0)
+                        push(a, c2, d2);
+                } else {
+                    for (int c = 2; c >= 0; c--) {
+                        int g = q.child[3 * a + c];
+                        if (g < 0)
+                            continue;
+                        double d = distance(g, b);
+                        if (d < j.bound[g])
+                            push(g, b, d);
+                    }
+                }
+            }
+        }
+
+        private void push(int a, int b, double d) {
+            if (top == qs.length) {
+                qs = Arrays.copyOf(qs, top * 2);
+                rs = Arrays.copyOf(rs, top * 2);
+                ds = Arrays.copyOf(ds, top * 2);
+            }
+            qs[top] = a;
+            rs[top] = b;
+            ds[top++] = d;
+        }
+
+        // Cached bound of query node a, an inner node takes the largest of its children
+        private double bound(int a) {
+            if (q.isLeaf(a))
+                return j.bound[a];
+            double res = 0;
+            for (int c = 0; c < 3; c++) {
+                int g = q.child[3 * a + c];
+                if (g >= 0)
+                    res = Math.max(res, j.bound[g]);
+            }
+            return j.bound[a] = res;
+        }
+
+        // Square distance between the boxes of query node a and reference node b
+        private double distance(int a, int b) {
+            double[] alo = q.lo, ahi = q.hi, blo = r.lo, bhi = r.hi;
+            int oa = a * K, ob = b * K;
+            double s = 0;
+            for (int d = 0; d < K; d++) {
+                double v = Math.max(blo[ob + d] - ahi[oa + d], alo[oa + d] - bhi[ob + d]);
+                if (v > 0)
+                    s += v * v;
+            }
+            return s;
+        }
+
+        // Compare the points of query leaf a and reference leaf b, then update the bound of a
+        private void base(int a, int b) {
+            double[] qc = q.coords, rc = r.coords, lo = r.lo, hi = r.hi;
+            int rb = r.beg[b], re = r.end[b], o = b * K;
+            double worst = 0, best = Double.POSITIVE_INFINITY;
+            for (int i = q.beg[a]; i < q.end[a]; i++) {
+                int qo = i * K;
+                double w = j.worst(i);
+                boolean skip = false;
+                if (re - rb > 1) {
+                    // skip a leaf beyond the k-th best distance of the point
+                    double s = 0;
+                    for (int d = 0; d < K; d++) {
+                        double v = Math.max(lo[o + d] - qc[qo + d], qc[qo + d] - hi[o + d]);
+                        if (v > 0)
+                            s += v * v;
+                    }
+                    skip = s >= w;
+                }
+                if (!skip)
+                    for (int t = rb; t < re; t++) {
+                        double d = DistanceKernels.squareDistance(qc, qo, rc, t * K, K);
+                        if (d < w) {
+                            j.offer(i, t, d);
+                            w = j.worst(i);
+                        }
+                    }
+                worst = Math.max(worst, w);
+                best = Math.min(best, w);
+            }
+            double t = Math.sqrt(best) + Math.sqrt(q.diameter[a]);
+            j.bound[a] = Math.min(worst, t * t);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package code;
+
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Dynamic KDTree implementation
+ * Features :
+ * Insert : SingleNode insert kept balanced by partial rebuilding (scapegoat tree)
+ * Delete : SingleNode delete
+ * Search : same as KDTree
+ * Refer to https://en.wikipedia.org/wiki/Scapegoat_tree
+ *
+ * An insert deeper than log(size) / log(1 / alpha) walks back up its path to
+ * the first ancestor whose child holds more than alpha of its points, and
+ * rebuilds that subtree by median finding. A delete replaces the deleted
+ * point by the smallest one along the split dimension in a subtree, the
+ * standard k-d tree deletion, and the whole tree is rebuilt once size falls
+ * below alpha * maxSize. The depth stays O(log(n)).
+ * */
+public class DynamicKDTree extends KDTree {
+    static final double ALPHA = 0.75;
+
+    double alpha = ALPHA;
+    // number of points, and its maximum since the last full rebuild
+    int size, maxSize;
+    // path of the last insert
+    Node[] path = new Node[64];
+
+    public DynamicKDTree(int K) {
+        super(K);
+    }
+
+    public DynamicKDTree(int K, HyperPoint min, HyperPoint max) {
+        super(K, min, max);
+    }
+
+    public DynamicKDTree(int K, HyperPoint min, HyperPoint max, double alpha) {
+        super(K, min, max);
+        if (alpha <= 0.5 || alpha >= 1)
+            throw new IllegalArgumentException("");
+        this.alpha = alpha;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void insert(HyperPoint p) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        size++;
+        maxSize = Math.max(maxSize, size);
+        version++;
+        if (root == null) {
+            root = new Node(new HyperSpace(min, max), p);
+            return;
+        }
+        // Descend as KDTree.insert does, recording the path
+        Node r = root, added;
+        int depth = 0;
+        while (true) {
+            if (depth == path.length) {
+                Node[] np = new Node[depth * 2];
+                System.arraycopy(path, 0, np, 0, depth);
+                path = np;
+            }
+            path[depth] = r;
+            int k = depth % K;
+            double pivot = r.p.coords[k];
+            Node next = p.coords[k] < pivot ? r.left : r.right;
+            if (next == null) {
+                boolean left = p.coords[k] < pivot;
+                HyperPoint hmin = new HyperPoint(r.hs.min), hmax = new HyperPoint(r.hs.max);
+                if (left)
+                    hmax.coords[k] = pivot;
+                else
+                    hmin.coords[k] = pivot;
+                added = new Node(new HyperSpace(hmin, hmax), p);
+                if (left)
+                    r.left = added;
+                else
+                    r.right = added;
+                break;
+            }
+            r = next;
+            depth++;
+        }
+        // the new node is at depth + 1
+        if (depth + 1 > Math.log(size) / Math.log(1 / alpha))
+            rebuildScapegoat(added, depth);
+        for (int i = 0; i <= depth; i++)
+            path[i] = null;
+    }
+
+    // Walk up from the node added below path[depth] to the first unbalanced ancestor and rebuild it
+    private void rebuildScapegoat(Node added, int depth) {
+        Node c = added;
+        int s = 1;
+        for (int i = depth; i >= 0; i--) {
+            Node a = path[i];
+            Node sibling = a.left == c ? a.right : a.left;
+            int sa = 1 + s + size(sibling);
+            if (s > alpha * sa) {
+                rebuild(i, sa);
+                return;
+            }
+            c = a;
+            s = sa;
+        }
+    }
+
+    // Rebuild the subtree rooted at path[i] holding num points
+    private void rebuild(int i, int num) {
+        Node a = path[i];
+        HyperPoint[] points = new HyperPoint[num];
+        collect(a, points, 0);
+        Node r = insertByMedianFinding(null, points, a.hs.min, a.hs.max, i, 0, num - 1);
+        if (i == 0)
+            root = r;
+        else if (path[i - 1].left == a)
+            path[i - 1].left = r;
+        else
+            path[i - 1].right = r;
+    }
+
+    private int size(Node r) {
+        int res = 0;
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(r, 0, 0);
+            while (!st.isEmpty()) {
+                Node c = (Node) st.pop();
+                if (c == null)
+                    continue;
+                res++;
+                st.push(c.right, 0, 0);
+                st.push(c.left, 0, 0);
+            }
+        } finally {
+            st.release();
+        }
+        return res;
+    }
+
+    // Store the points of subtree r in pre-order from points[i], returns the next free index
+    private int collect(Node r, HyperPoint[] points, int i) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(r, 0, 0);
+            while (!st.isEmpty()) {
+                Node c = (Node) st.pop();
+                if (c == null)
+                    continue;
+                points[i++] = c.p;
+                st.push(c.right, 0, 0);
+                st.push(c.left, 0, 0);
+            }
+        } finally {
+            st.release();
+        }
+        return i;
+    }
+
+    /*
+     * Delete one point equal to p, returns false if there is none. The
+     * deleted point is replaced by the point with the smallest coordinate
+     * along the split dimension in the right subtree, which is deleted in
+     * turn, until a leaf is removed. Without a right subtree the left one
+     * becomes the right one first.
+     */
+    public boolean delete(HyperPoint p) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        // Entries are the parent of a node, null for the root, with the
+        // depth of the node and its side, negative for a left child
+        Node parent = null, r = null;
+        boolean left = false;
+        int depth = 0;
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            if (root != null)
+                st.push(null, 0, 0);
+            while (!st.isEmpty()) {
+                Node a = (Node) st.pop();
+                int d = st.depth();
+                boolean l = st.value() < 0;
+                Node c = a == null ? root : l ? a.left : a.right;
+                // the point can only be in a subtree whose hyperspace contains it
+                if (c == null || !c.hs.contains(p.coords))
+                    continue;
+                if (c.p.equals(p)) {
+                    parent = a;
+                    r = c;
+                    left = l;
+                    depth = d;
+                    break;
+                }
+                // Points equal to the pivot may be on both sides after a median build
+                int k = d % K;
+                double pivot = c.p.coords[k];
+                if (p.coords[k] >= pivot)
+                    st.push(c, d + 1, 1);
+                if (p.coords[k] <= pivot)
+                    st.push(c, d + 1, -1);
+            }
+        } finally {
+            st.release();
+        }
+        if (r == null)
+            return false;
+        remove(parent, left, r, depth);
+        size--;
+        version++;
+        if (size < alpha * maxSize) {
+            HyperPoint[] points = new HyperPoint[size];
+            collect(root, points, 0);
+            root = insertByMedianFinding(null, points, min, max, 0, 0, size - 1);
+            maxSize = size;
+        }
+        return true;
+    }
+
+    // Remove the point of r, the left or right child of parent at depth
+    private void remove(Node parent, boolean left, Node r, int depth) {
+        while (r.left != null || r.right != null) {
+            int k = depth % K;
+            double pivot = r.p.coords[k];
+            if (r.right == null) {
+                r.right = r.left;
+                r.left = null;
+                grow(r.right, k, pivot, r.hs.max.coords[k]);
+            }
+            Node a = findMin(r, k, depth);
+            Node m = minLeft ? a.left : a.right;
+            // the left subtree now ends at the new pivot
+            grow(r.left, k, pivot, m.p.coords[k]);
+            r.p = m.p;
+            parent = a;
+            left = minLeft;
+            r = m;
+            depth = minDepth;
+        }
+        if (parent == null)
+            root = null;
+        else if (left)
+            parent.left = null;
+        else
+            parent.right = null;
+    }
+
+    // side and depth of the node found by findMin
+    private boolean minLeft;
+    private int minDepth;
+
+    /*
+     * Parent of the node with the smallest coordinate k in the right subtree
+     * of r at depth, the node is its left child if minLeft
+     */
+    private Node findMin(Node r, int k, int depth) {
+        Node res = null;
+        double best = Double.POSITIVE_INFINITY;
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(r, depth + 1, 1);
+            while (!st.isEmpty()) {
+                Node a = (Node) st.pop();
+                int d = st.depth();
+                boolean l = st.value() < 0;
+                Node c = l ? a.left : a.right;
+                if (c == null || res != null && c.hs.min.coords[k] >= best)
+                    continue;
+                if (res == null || c.p.coords[k] < best) {
+                    res = a;
+                    best = c.p.coords[k];
+                    minLeft = l;
+                    minDepth = d;
+                }
+                // the right side of a split on k holds no smaller coordinate
+                if (d % K != k)
+                    st.push(c, d + 1, 1);
+                st.push(c, d + 1, -1);
+            }
+        } finally {
+            st.release();
+        }
+        return res;
+    }
+
+    // Stretch the hyperspaces of subtree r reaching from on dimension k up to to
+    private void grow(Node r, int k, double from, double to) {
+        if (r == null || to <= from)
+            return;
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(r, 0, 0);
+            while (!st.isEmpty()) {
+                Node c = (Node) st.pop();
+                if (c == null || c.hs.max.coords[k] < from)
+                    continue;
+                HyperPoint hmax = new HyperPoint(c.hs.max);
+                hmax.coords[k] = Math.max(hmax.coords[k], to);
+                c.hs = new HyperSpace(c.hs.min, hmax);
+                st.push(c.right, 0, 0);
+                st.push(c.left, 0, 0);
+            }
+        } finally {
+            st.release();
+        }
+    }
+
+    @Override
+    public void insertByPreSort(HyperPoint[] points) {
+        super.insertByPreSort(points);
+        size = maxSize = size(root);
+    }
+
+    @Override
+    public void insertByMedianFinding(HyperPoint[] points) {
+        super.insertByMedianFinding(points);
+        size = maxSize = size(root);
+    }
+
+    @Override
+    public void insertByMedianFindingParallel(HyperPoint[] points, int threshold, ForkJoinPool pool) {
+        super.insertByMedianFindingParallel(points, threshold, pool);
+        size = maxSize = size(root);
+    }
+}
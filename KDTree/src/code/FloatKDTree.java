@@ -0,0 +1,306 @@
+package code;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Float KDTree implementation
+ * Features :
+ * Same flat layout as StaticKDTree, but points and bounds are float, so it
+ * takes half the memory of the double version
+ * Build : median finding on a flat float[] of points
+ * Search : Range Search, Nearest NeighBor Search, on float[] queries or
+ * through the common PointIndex API, iterative as in ImplicitKDTree
+ *
+ * Coordinate differences are float, square distances are accumulated in double.
+ * */
+public class FloatKDTree implements PointIndex {
+    int K = 2;
+    // number of points
+    int n;
+    // coordinates of point i are coords[i * K] ... coords[i * K + K - 1]
+    float[] coords;
+    // float[] min, max are determined the range of KDTree Space
+    float[] min, max;
+
+    public FloatKDTree(int K, float[] min, float[] max) {
+        if (K <= 0 || K != min.length || K != max.length)
+            throw new IllegalArgumentException("");
+        this.K = K;
+        this.min = min.clone();
+        this.max = max.clone();
+        coords = new float[0];
+    }
+
+    public FloatKDTree(int K, HyperPoint min, HyperPoint max) {
+        this(K, toFloat(min), toFloat(max));
+    }
+
+    static float[] toFloat(HyperPoint p) {
+        float[] res = new float[p.K];
+        for (int k = 0; k < p.K; k++)
+            res[k] = (float) p.coords[k];
+        return res;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /*
+     * Build the tree from a flat points array, point i being points[i * K] ...
+     * points[i * K + K - 1]. The input array is not modified.
+     */
+    public void insertByMedianFinding(float[] points) {
+        if (points.length % K != 0)
+            throw new IllegalArgumentException("");
+        coords = points.clone();
+        n = points.length / K;
+        build(0, 0, n - 1);
+    }
+
+    public void insertByMedianFinding(HyperPoint[] points) {
+        float[] flat = new float[points.length * K];
+        for (int i = 0; i < points.length; i++) {
+            if (points[i].K != K)
+                throw new IllegalArgumentException("");
+            for (int k = 0; k < K; k++)
+                flat[i * K + k] = (float) points[i].coords[k];
+        }
+        coords = flat;
+        n = points.length;
+        build(0, 0, n - 1);
+    }
+
+    private void build(int depth, int i, int j) {
+        if (i >= j)
+            return;
+        int t = findMedian(depth % K, i, j);
+        build(depth + 1, i, t - 1);
+        build(depth + 1, t + 1, j);
+    }
+
+    private void swap(int a, int b) {
+        for (int k = 0, oa = a * K, ob = b * K; k < K; k++) {
+            float temp = coords[oa + k];
+            coords[oa + k] = coords[ob + k];
+            coords[ob + k] = temp;
+        }
+    }
+
+    // quickSort partition function, same as KDTree.partition on the flat array
+    private int partition(int k, int beg, int end) {
+        float pivot = coords[beg * K + k];
+        int i = beg, j = end + 1;
+        while (true) {
+            while (++i <= end && coords[i * K + k] < pivot)
+                ;
+            while (--j > beg && coords[j * K + k] >= pivot)
+                ;
+            if (i < j)
+                swap(i, j);
+            else
+                break;
+        }
+        swap(beg, j);
+        return j;
+    }
+
+    private int findMedian(int k, int beg, int end) {
+        int mid = (beg + end) / 2;
+        int i = beg, j = end;
+        while (true) {
+            int t = partition(k, i, j);
+            if (t == mid)
+                return t;
+            else if (t > mid)
+                j = t - 1;
+            else
+                i = t + 1;
+        }
+    }
+
+    // Copy of the i-th stored point
+    public float[] get(int i) {
+        float[] res = new float[K];
+        System.arraycopy(coords, i * K, res, 0, K);
+        return res;
+    }
+
+    public HyperPoint point(int i) {
+        double[] crds = new double[K];
+        for (int k = 0; k < K; k++)
+            crds[k] = coords[i * K + k];
+        return new HyperPoint(crds);
+    }
+
+    private double squareDistance(int i, float[] q) {
+        return DistanceKernels.squareDistance(coords, i * K, q, 0, K);
+    }
+
+    /*
+     * Nearest Neighbor Finding, as StaticKDTree but the far branch is pruned
+     * by comparing square distances.
+     */
+    static class Nearest {
+        int best = -1;
+        double dist = Double.POSITIVE_INFINITY;
+    }
+
+    // Index of the nearest point, -1 if the tree is empty
+    public int nearestIndex(float[] q) {
+        if (q.length != K)
+            throw new IllegalArgumentException("");
+        Nearest s = new Nearest();
+        if (DistanceKernels.bruteForce(K, n)) {
+            for (int i = 0; i < n; i++) {
+                double dist = squareDistance(i, q);
+                if (dist < s.dist) {
+                    s.best = i;
+                    s.dist = dist;
+                }
+            }
+            return s.best;
+        }
+        nearestPoint(q, s);
+        return s.best;
+    }
+
+    // Iterative, as ImplicitKDTree.nearestPoint, far ranges are stacked with their square distance to the pivot
+    private void nearestPoint(float[] q, Nearest s) {
+        int[] ranges = new int[3 * ImplicitKDTree.MAX_DEPTH];
+        double[] dists = new double[ImplicitKDTree.MAX_DEPTH];
+        int top = 0, i = 0, j = n - 1, depth = 0;
+        while (true) {
+            // descend along the near ranges
+            while (i <= j) {
+                int t = (i + j) >>> 1;
+                double dist = squareDistance(t, q);
+                // update current best
+                if (dist < s.dist) {
+                    s.best = t;
+                    s.dist = dist;
+                }
+                int k = depth % K;
+                float diff = q[k] - coords[t * K + k];
+                int fi, fj;
+                if (diff < 0) {
+                    fi = t + 1;
+                    fj = j;
+                    j = t - 1;
+                } else {
+                    fi = i;
+                    fj = t - 1;
+                    i = t + 1;
+                }
+                depth++;
+                if (fi <= fj) {
+                    ranges[3 * top] = fi;
+                    ranges[3 * top + 1] = fj;
+                    ranges[3 * top + 2] = depth;
+                    dists[top++] = (double) diff * diff;
+                }
+            }
+            // back up to the last far range not farther than the best distance
+            do {
+                if (top == 0)
+                    return;
+                top--;
+            } while (dists[top] > s.dist);
+            i = ranges[3 * top];
+            j = ranges[3 * top + 1];
+            depth = ranges[3 * top + 2];
+        }
+    }
+
+    @Override
+    public HyperPoint nearestPoint(HyperPoint p) {
+        int i = nearestIndex(toFloat(p));
+        return i < 0 ? null : point(i);
+    }
+
+    /*
+     * Range Search on the box [lo, hi], the index of every point found is
+     * passed to the visitor. Returns false if the visitor stopped the search.
+     */
+    public boolean rangeIndexes(float[] lo, float[] hi, ImplicitKDTree.IndexVisitor visitor) {
+        if (lo.length != K || hi.length != K)
+            throw new IllegalArgumentException("");
+        if (n == 0)
+            return true;
+        for (int k = 0; k < K; k++)
+            if (min[k] > hi[k] || max[k] < lo[k])
+                return true;
+        // Iterative, as ImplicitKDTree.rangeIndexes, a child is checked on the splitting dimension of its parent
+        int[] ranges = new int[3 * (ImplicitKDTree.MAX_DEPTH + 1)];
+        ranges[1] = n - 1;
+        int top = 1;
+        while (top > 0) {
+            top--;
+            int i = ranges[3 * top], j = ranges[3 * top + 1], depth = ranges[3 * top + 2];
+            int t = (i + j) >>> 1;
+            if (contains(lo, hi, t) && !visitor.visit(t))
+                return false;
+            int k = depth % K;
+            float pivot = coords[t * K + k];
+            if (t < j && pivot <= hi[k]) {
+                ranges[3 * top] = t + 1;
+                ranges[3 * top + 1] = j;
+                ranges[3 * top + 2] = depth + 1;
+                top++;
+            }
+            if (i < t && pivot >= lo[k]) {
+                ranges[3 * top] = i;
+                ranges[3 * top + 1] = t - 1;
+                ranges[3 * top + 2] = depth + 1;
+                top++;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(float[] lo, float[] hi, int i) {
+        for (int k = 0, off = i * K; k < K; k++) {
+            float c = coords[off + k];
+            if (lo[k] > c || c > hi[k])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Set<HyperPoint> rangeQuery(HyperSpace hs) {
+        final Set<HyperPoint> res = new HashSet<HyperPoint>();
+        rangeIndexes(toFloat(hs.min), toFloat(hs.max), new ImplicitKDTree.IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                res.add(point(i));
+                return true;
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public boolean rangeQuery(HyperSpace hs, final PointVisitor<HyperPoint> visitor) {
+        return rangeIndexes(toFloat(hs.min), toFloat(hs.max), new ImplicitKDTree.IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                return visitor.visit(point(i));
+            }
+        });
+    }
+
+    @Override
+    public int rangeCount(HyperSpace hs) {
+        final int[] res = new int[1];
+        rangeIndexes(toFloat(hs.min), toFloat(hs.max), new ImplicitKDTree.IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                res[0]++;
+                return true;
+            }
+        });
+        return res[0];
+    }
+}
@@ -0,0 +1,244 @@
+package code;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Read only KDTree in the implicit median layout
+ * Features :
+ * Search : Range Search, Nearest NeighBor Search (same results as KDTree)
+ * Storage : left to subclasses, StaticKDTree keeps the coordinates in a
+ * double[] and MappedKDTree in a memory mapped file
+ *
+ * The node covering points [i, j] is stored at index (i + j) / 2, so
+ * children are implicit : left is [i, t - 1], right is [t + 1, j]. The
+ * splitting dimension is the depth modulo K, as in KDTree.
+ * Queries are iterative, the ranges waiting to be searched are kept in int
+ * arrays : with at most 2^31 points the tree has at most 31 levels, so a
+ * stack of MAX_DEPTH entries never overflows.
+ * */
+public abstract class ImplicitKDTree implements PointIndex {
+    // Bound of the levels of the tree, so of the entries of the query stacks
+    static final int MAX_DEPTH = 32;
+
+    int K = 2;
+    // number of points
+    int n;
+    // HyperPoint min, max are determined the range of KDTree Space
+    HyperPoint min, max;
+
+    ImplicitKDTree(int K, HyperPoint min, HyperPoint max) {
+        if (K <= 0 || K != min.K || K != max.K)
+            throw new IllegalArgumentException("");
+        this.K = K;
+        this.min = min;
+        this.max = max;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    // The c-th value of the flat coordinates, coordinates of point i are c = i * K ... i * K + K - 1
+    abstract double coord(int c);
+
+    // Square distance from p to the i-th point
+    abstract double squareDistance(int i, HyperPoint p);
+
+    // Copy of the i-th stored point
+    public HyperPoint point(int i) {
+        double[] crds = new double[K];
+        for (int k = 0; k < K; k++)
+            crds[k] = coord(i * K + k);
+        return new HyperPoint(crds);
+    }
+
+    /*
+     * Nearest Neighbor Finding, same traversal and pruning as
+     * KDTree.nearestPoint. The search state is kept per call.
+     */
+    static class Nearest {
+        // index of current best point
+        int best;
+        // current minimal distance
+        double dist;
+    }
+
+    public HyperPoint nearestPoint(HyperPoint p) {
+        int i = nearestIndex(p);
+        return i < 0 ? null : point(i);
+    }
+
+    // Index of the nearest point, -1 if the tree is empty
+    public int nearestIndex(HyperPoint p) {
+        if (n == 0)
+            return -1;
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        Nearest s = new Nearest();
+        if (DistanceKernels.bruteForce(K, n)) {
+            s.best = -1;
+            s.dist = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                double dist = squareDistance(i, p);
+                if (dist < s.dist) {
+                    s.best = i;
+                    s.dist = dist;
+                }
+            }
+            return s.best;
+        }
+        s.best = (n - 1) / 2;
+        s.dist = squareDistance(s.best, p);
+        nearestPoint(p, s);
+        return s.best;
+    }
+
+    /*
+     * Iterative, as KDTree.nearestPoint : the far range of every node is
+     * stacked as i, j, depth with its pivot on the way down, and the pruning
+     * test is done when it is popped, with the current best distance.
+     */
+    private void nearestPoint(HyperPoint p, Nearest s) {
+        int[] ranges = new int[3 * MAX_DEPTH];
+        double[] pivots = new double[MAX_DEPTH];
+        int top = 0, i = 0, j = n - 1, depth = 0;
+        while (true) {
+            // descend along the near ranges
+            while (i <= j) {
+                int t = (i + j) >>> 1;
+                double dist = squareDistance(t, p);
+                // update current best
+                if (dist < s.dist) {
+                    s.best = t;
+                    s.dist = dist;
+                }
+                int k = depth % K;
+                double pivot = coord(t * K + k);
+                int fi, fj;
+                if (p.coords[k] < pivot) {
+                    fi = t + 1;
+                    fj = j;
+                    j = t - 1;
+                } else {
+                    fi = i;
+                    fj = t - 1;
+                    i = t + 1;
+                }
+                depth++;
+                if (fi <= fj) {
+                    ranges[3 * top] = fi;
+                    ranges[3 * top + 1] = fj;
+                    ranges[3 * top + 2] = depth;
+                    pivots[top++] = pivot;
+                }
+            }
+            // back up to the last far range intersecting the hypersphere
+            while (true) {
+                if (top == 0)
+                    return;
+                top--;
+                double pivot = pivots[top];
+                depth = ranges[3 * top + 2];
+                int k = (depth - 1) % K;
+                if (p.coords[k] < pivot ? p.coords[k] + Math.sqrt(s.dist) >= pivot : p.coords[k] - Math.sqrt(s.dist) <= pivot) {
+                    i = ranges[3 * top];
+                    j = ranges[3 * top + 1];
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Range Search, the hyperspace of each node is not stored : the root box
+     * min, max is checked once, then a child is only checked on the splitting
+     * dimension of its parent, the one bound its box does not share with it.
+     */
+    public Set<HyperPoint> rangeQuery(HyperSpace hs) {
+        final Set<HyperPoint> res = new HashSet<HyperPoint>();
+        rangeIndexes(hs, new IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                res.add(point(i));
+                return true;
+            }
+        });
+        return res;
+    }
+
+    // Streaming Range Search, returns false if the visitor stopped the search
+    public boolean rangeQuery(HyperSpace hs, final PointVisitor<HyperPoint> visitor) {
+        return rangeIndexes(hs, new IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                return visitor.visit(point(i));
+            }
+        });
+    }
+
+    // Number of points in hs
+    public int rangeCount(HyperSpace hs) {
+        final int[] res = new int[1];
+        rangeIndexes(hs, new IndexVisitor() {
+            @Override
+            public boolean visit(int i) {
+                res[0]++;
+                return true;
+            }
+        });
+        return res[0];
+    }
+
+    // Callback on the index of every point found, returning false stops the search
+    interface IndexVisitor {
+        boolean visit(int i);
+    }
+
+    boolean rangeIndexes(HyperSpace hs, IndexVisitor visitor) {
+        if (hs.K != K)
+            throw new IllegalArgumentException("");
+        if (n == 0)
+            return true;
+        for (int k = 0; k < K; k++)
+            if (min.coords[k] > hs.max.coords[k] || max.coords[k] < hs.min.coords[k])
+                return true;
+        // pre-order, the right range is stacked under the left one
+        int[] ranges = new int[3 * (MAX_DEPTH + 1)];
+        ranges[1] = n - 1;
+        int top = 1;
+        while (top > 0) {
+            top--;
+            int i = ranges[3 * top], j = ranges[3 * top + 1], depth = ranges[3 * top + 2];
+            int t = (i + j) >>> 1;
+            if (contains(hs, t) && !visitor.visit(t))
+                return false;
+            int k = depth % K;
+            double pivot = coord(t * K + k);
+            // the right box starts at pivot, the left one ends there
+            if (t < j && pivot <= hs.max.coords[k]) {
+                ranges[3 * top] = t + 1;
+                ranges[3 * top + 1] = j;
+                ranges[3 * top + 2] = depth + 1;
+                top++;
+            }
+            if (i < t && pivot >= hs.min.coords[k]) {
+                ranges[3 * top] = i;
+                ranges[3 * top + 1] = t - 1;
+                ranges[3 * top + 2] = depth + 1;
+                top++;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(HyperSpace hs, int i) {
+        int off = i * K;
+        for (int k = 0; k < K; k++) {
+            double c = coord(off + k);
+            if (hs.min.coords[k] > c || c > hs.max.coords[k])
+                return false;
+        }
+        return true;
+    }
+}
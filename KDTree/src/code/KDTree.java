@@ -1,18 +1,26 @@
 package code;
  
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /*
  * KDTree implementation
  * Features :
  * K-Dimension
- * Search : Range Search, Nearest NeighBor Search
- * Insert : SingleNode insert, Points set insert (Split by median using median of medians and presort)
+ * Search : Range Search (streaming visitor, count only), Nearest NeighBor Search (thread-safe, parallel batch, Morton ordered batch), K Nearest NeighBor Search, Approximate Nearest NeighBor Search (best bin first), Radius Search
+ * Insert : SingleNode insert, Points set insert (Split by median using median of medians and presort, parallel median build)
+ * Leaves : optional buckets of up to bucketSize points, their coordinates in one flat double[] per leaf scanned linearly
+ * Metrics : opt-in per-query node visits and prunes through a QueryListener, depth, balance and leaf occupancy (treeStats)
+ * Traversal : insert and queries are iterative on reusable per-thread stacks (TraversalStack)
  * Refer to https://en.wikipedia.org/wiki/K-d_tree
  * Author : linpc2013
  *
@@ -52,10 +60,7 @@ class HyperPoint {
     public double squareDistanceTo(HyperPoint p) {
         if (K != p.K)
             throw new IllegalArgumentException("");
-        double res = 0;
-        for (int i = 0; i < K; i++)
-            res += (coords[i] - p.coords[i]) * (coords[i] - p.coords[i]);
-        return res;
+        return DistanceKernels.squareDistance(coords, 0, p.coords, 0, K);
     }
 
     public String toString() {
@@ -93,8 +98,13 @@ class HyperSpace {
     public boolean contains(HyperPoint p) {
         if (K != p.K)
             throw new IllegalArgumentException("");
+        return contains(p.coords);
+    }
+
+    // Unchecked, for the traversals whose entry point checked the dimension
+    boolean contains(double[] c) {
         for (int i = 0; i < K; i++)
-            if (min.coords[i] > p.coords[i] || p.coords[i] > max.coords[i])
+            if (min.coords[i] > c[i] || c[i] > max.coords[i])
                 return false;
         return true;
     }
@@ -103,13 +113,7 @@ class HyperSpace {
     public double squareDistanceTo(HyperPoint p) {
         if (K != p.K)
             throw new IllegalArgumentException("");
-        double res = 0;
-        for (int i = 0; i < K; i++)
-            if (min.coords[i] > p.coords[i])
-                res += (min.coords[i] - p.coords[i]) * (min.coords[i] - p.coords[i]);
-            else if (p.coords[i] > max.coords[i])
-                res += (p.coords[i] - max.coords[i]) * (p.coords[i] - max.coords[i]);
-        return res;
+        return DistanceKernels.boxSquareDistance(min.coords, max.coords, p.coords, K);
     }
 
     // Euclidean Distance
@@ -122,19 +126,57 @@ class HyperSpace {
     }
 }
 
-public class KDTree {
+public class KDTree implements PointIndex {
     class Node {
         // HyperSpace hs is used to accelerate range search
         HyperSpace hs;
         // Current spliting node
         HyperPoint p;
         Node left, right;
+        // Leaf bucket, null for a splitting node. The coordinates of its
+        // count points are copied contiguously into coords.
+        HyperPoint[] bucket;
+        double[] coords;
+        int count;
 
         public Node(HyperSpace hs, HyperPoint p) {
             this.hs = hs;
             this.p = p;
             left = right = null;
         }
+
+        // Empty leaf holding up to bucketSize points
+        public Node(HyperSpace hs) {
+            this.hs = hs;
+            bucket = new HyperPoint[bucketSize];
+            coords = new double[bucketSize * K];
+        }
+
+        public boolean isLeaf() {
+            return bucket != null;
+        }
+
+        public void addPoint(HyperPoint p) {
+            if (p.K != K)
+                throw new IllegalArgumentException("");
+            System.arraycopy(p.coords, 0, coords, count * K, K);
+            bucket[count++] = p;
+        }
+
+        // Square distance from p to the i-th point of the bucket
+        public double squareDistance(int i, HyperPoint p) {
+            return DistanceKernels.squareDistance(coords, i * K, p.coords, 0, K);
+        }
+
+        // Whether hs contains the i-th point of the bucket
+        public boolean contains(HyperSpace hs, int i) {
+            for (int k = 0, off = i * K; k < K; k++) {
+                double c = coords[off + k];
+                if (hs.min.coords[k] > c || c > hs.max.coords[k])
+                    return false;
+            }
+            return true;
+        }
     }
 
     Node root;
@@ -142,6 +184,12 @@ public class KDTree {
     double RANGE = 1.0;
     // HyperPoint min, max are determined the range of KDTree Space
     HyperPoint min, max;
+    // Points per leaf, 1 keeps one point per node all the way down
+    int bucketSize = 1;
+    // Receives the counters of every query, null disables them
+    QueryListener listener;
+    // Bumped by every change of the points set, see QueryCache
+    volatile long version;
 
     public KDTree(int K) {
         this.K = K;
@@ -160,6 +208,67 @@ public class KDTree {
         root = null;
     }
 
+    /*
+     * Bucketed leaves : subtrees of at most bucketSize points are stored in a
+     * single leaf and scanned linearly, which divides the number of nodes by
+     * about bucketSize. A full leaf is split on the next insert.
+     */
+    public KDTree(int K, HyperPoint min, HyperPoint max, int bucketSize) {
+        this(K, min, max);
+        if (bucketSize < 1)
+            throw new IllegalArgumentException("");
+        this.bucketSize = bucketSize;
+    }
+
+    // Changes whenever a point is added or removed, or the tree is rebuilt
+    public long version() {
+        return version;
+    }
+
+    /*
+     * Query instrumentation : while a listener is set, every nearestPoint,
+     * kNearest, rangeQuery, rangeCount and withinRadius call counts its node
+     * visits and prunes and reports them to it. Pass null to turn it off.
+     */
+    public void setQueryListener(QueryListener listener) {
+        this.listener = listener;
+    }
+
+    // Depth, balance and leaf occupancy of the current tree
+    public TreeStats treeStats() {
+        TreeStats ts = new TreeStats();
+        treeStats(root, 1, ts);
+        return ts;
+    }
+
+    private void treeStats(Node root, int depth, TreeStats ts) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, depth, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (r == null)
+                    continue;
+                int d = st.depth(), count = r.isLeaf() ? r.count : 1;
+                ts.node(d, count);
+                if (r.left == null && r.right == null)
+                    ts.leaf(d, count);
+                st.push(r.right, d + 1, 0);
+                st.push(r.left, d + 1, 0);
+            }
+        } finally {
+            st.release();
+        }
+    }
+
+    // Leaf holding points[i..j]
+    Node newLeaf(HyperPoint hmin, HyperPoint hmax, HyperPoint[] points, int i, int j) {
+        Node r = new Node(new HyperSpace(hmin, hmax));
+        for (int t = i; t <= j; t++)
+            r.addPoint(points[t]);
+        return r;
+    }
+
     /*
      * Single Node insertion just like binary search tree but be careful to the
      * cycle of coordinate
@@ -167,98 +276,146 @@ public class KDTree {
     public void insert(HyperPoint p) {
         HyperPoint hmin = new HyperPoint(min);
         HyperPoint hmax = new HyperPoint(max);
-        root = insert(root, p, hmin, hmax, 0);
-    }
-
-    private Node insert(Node r, HyperPoint p, HyperPoint hmin, HyperPoint hmax, int depth) {
-        if (r == null)
-            return new Node(new HyperSpace(hmin, hmax), p);
-        int k = depth % K;
-        double pivot = r.p.coords[k];
-        if (p.coords[k] < pivot) {
-            hmax.coords[k] = pivot;
-            r.left = insert(r.left, p, hmin, hmax, depth + 1);
-        } else {
-            hmin.coords[k] = pivot;
-            r.right = insert(r.right, p, hmin, hmax, depth + 1);
+        // Descend to the empty child or the leaf taking p, without recursion
+        Node parent = null, r = root;
+        int depth = 0;
+        boolean left = false;
+        while (r != null && !r.isLeaf()) {
+            int k = depth % K;
+            double pivot = r.p.coords[k];
+            parent = r;
+            left = p.coords[k] < pivot;
+            if (left) {
+                hmax.coords[k] = pivot;
+                r = r.left;
+            } else {
+                hmin.coords[k] = pivot;
+                r = r.right;
+            }
+            depth++;
         }
-        return r;
+        Node n = insertLeaf(r, p, hmin, hmax, depth);
+        if (parent == null)
+            root = n;
+        else if (left)
+            parent.left = n;
+        else
+            parent.right = n;
+        version++;
     }
 
-    // Presort method
-    // Inner class SortComparator is used for presort of points set
-    class SortComparator implements Comparator<HyperPoint> {
-        int k;
-
-        public void setK(int k) {
-            this.k = k;
+    // Add p to the empty subtree or the leaf r
+    private Node insertLeaf(Node r, HyperPoint p, HyperPoint hmin, HyperPoint hmax, int depth) {
+        if (r == null) {
+            if (bucketSize == 1)
+                return new Node(new HyperSpace(hmin, hmax), p);
+            r = new Node(new HyperSpace(hmin, hmax));
         }
-
-        @Override
-        public int compare(HyperPoint o1, HyperPoint o2) {
-            if (o1.coords[k] > o2.coords[k])
-                return 1;
-            else if (o1.coords[k] == o2.coords[k])
-                return 0;
-            return -1;
+        if (r.count < bucketSize) {
+            r.addPoint(p);
+            return r;
         }
+        // Split the full leaf by median finding
+        HyperPoint[] points = Arrays.copyOf(r.bucket, r.count + 1);
+        points[r.count] = p;
+        return insertByMedianFinding(null, points, r.hs.min, r.hs.max, depth, 0, r.count);
     }
 
+    /*
+     * Presort method
+     * Every dimension k gets an array of point indexes sorted by coordinate k.
+     * At each level the median of the splitting dimension is taken from its
+     * sorted array, and the sorted arrays of the other dimensions are stably
+     * partitioned into left and right parts, so every subrange stays sorted.
+     * The build is O(K * n * log(n)).
+     */
     public void insertByPreSort(HyperPoint[] points) {
         int num = points.length;
         HyperPoint hmin = new HyperPoint(min);
         HyperPoint hmax = new HyperPoint(max);
-        // k presort points set
-        HyperPoint[][] kpoints = new HyperPoint[K][];
-        SortComparator sc = new SortComparator();
+        // k presort points indexes
+        int[][] idx = new int[K][num];
+        int[] buf = new int[num];
         // Presort
         for (int k = 0; k < K; k++) {
-            sc.setK(k);
-            Arrays.sort(points, sc);
-            kpoints[k] = points.clone();
+            for (int i = 0; i < num; i++)
+                idx[k][i] = i;
+            sortByCoord(points, idx[k], k, buf);
         }
-        Vector<HyperPoint> avails = new Vector<HyperPoint>();
-        for (int i = 0; i < num; i++)
-            avails.add(kpoints[0][i]);
-        root = insertByPreSort(root, kpoints, hmin, hmax, 0, avails);
+        boolean[] left = new boolean[num];
+        root = insertByPreSort(points, idx, hmin, hmax, 0, 0, num - 1, left, buf);
+        version++;
     }
 
-    private Node insertByPreSort(Node r, HyperPoint[][] kpoints, HyperPoint hmin, HyperPoint hmax, int depth, Vector<HyperPoint> avails) {
-        int num = avails.size();
-        if (num == 0)
+    // Stable bottom-up merge sort of indexes by coordinate k
+    static void sortByCoord(HyperPoint[] points, int[] a, int k, int[] buf) {
+        int num = a.length;
+        int[] src = a, dst = buf;
+        for (int w = 1; w < num; w *= 2) {
+            for (int beg = 0; beg < num; beg += 2 * w) {
+                int mid = Math.min(beg + w, num), end = Math.min(beg + 2 * w, num);
+                int i = beg, j = mid, t = beg;
+                while (i < mid && j < end)
+                    dst[t++] = points[src[j]].coords[k] < points[src[i]].coords[k] ? src[j++] : src[i++];
+                while (i < mid)
+                    dst[t++] = src[i++];
+                while (j < end)
+                    dst[t++] = src[j++];
+            }
+            int[] temp = src;
+            src = dst;
+            dst = temp;
+        }
+        if (src != a)
+            System.arraycopy(src, 0, a, 0, num);
+    }
+
+    private Node insertByPreSort(HyperPoint[] points, int[][] idx, HyperPoint hmin, HyperPoint hmax, int depth, int i, int j, boolean[] left, int[] buf) {
+        if (i > j)
             return null;
-        else {
-            int k = depth % K;
-            if (num == 1)
-                return new Node(new HyperSpace(hmin, hmax), avails.get(0));
-            int mid = (num - 1) / 2;
-            if (r == null)
-                r = new Node(new HyperSpace(hmin, hmax), avails.get(mid));
-            HyperPoint hmid1 = new HyperPoint(hmax);
-            hmid1.coords[k] = kpoints[k][mid].coords[k];
-            // Splitting current points set
-            HashMap<HyperPoint, Integer> split = new HashMap<HyperPoint, Integer>();
-            for (int p = 0; p < num; p++)
-                if (p < mid)
-                    split.put(avails.get(p), 0);
-                else if (p > mid)
-                    split.put(avails.get(p), 1);
-            int k1 = (depth + 1) % K;
-            // Generating left and right branch available points set
-            Vector<HyperPoint> left = new Vector<HyperPoint>(), right = new Vector<HyperPoint>();
-            for (HyperPoint p : kpoints[k1])
-                if (split.containsKey(p))
-                    if (split.get(p) == 0)
-                        left.addElement(p);
-                    else
-                        right.addElement(p);
-            // Recursive Split
-            r.left = insertByPreSort(r.left, kpoints, hmin, hmid1, depth + 1, left);
-            HyperPoint hmid2 = new HyperPoint(hmin);
-            hmid1.coords[k] = kpoints[k][mid].coords[k];
-            r.right = insertByPreSort(r.right, kpoints, hmid2, hmax, depth + 1, right);
+        int k = depth % K;
+        if (j - i < bucketSize && bucketSize > 1) {
+            Node r = new Node(new HyperSpace(hmin, hmax));
+            for (int t = i; t <= j; t++)
+                r.addPoint(points[idx[k][t]]);
             return r;
         }
+        int mid = (i + j) / 2;
+        int m = idx[k][mid];
+        HyperPoint p = points[m];
+        Node r = new Node(new HyperSpace(hmin, hmax), p);
+        if (i == j)
+            return r;
+        // Splitting current points set by position in dimension k
+        for (int t = i; t <= j; t++)
+            left[idx[k][t]] = t < mid;
+        for (int d = 0; d < K; d++)
+            if (d != k)
+                splitByPreSort(idx[d], i, j, mid, m, left, buf);
+        // Recursive Split
+        HyperPoint hmid1 = new HyperPoint(hmax);
+        hmid1.coords[k] = p.coords[k];
+        r.left = insertByPreSort(points, idx, hmin, hmid1, depth + 1, i, mid - 1, left, buf);
+        HyperPoint hmid2 = new HyperPoint(hmin);
+        hmid2.coords[k] = p.coords[k];
+        r.right = insertByPreSort(points, idx, hmid2, hmax, depth + 1, mid + 1, j, left, buf);
+        return r;
+    }
+
+    // Stable partition of a[i..j] into left part a[i..mid-1], median m and right part a[mid+1..j]
+    private static void splitByPreSort(int[] a, int i, int j, int mid, int m, boolean[] left, int[] buf) {
+        int l = i, b = 0;
+        for (int t = i; t <= j; t++) {
+            int id = a[t];
+            if (id == m)
+                continue;
+            if (left[id])
+                a[l++] = id;
+            else
+                buf[b++] = id;
+        }
+        a[mid] = m;
+        System.arraycopy(buf, 0, a, mid + 1, b);
     }
     //
 
@@ -267,10 +424,11 @@ public class KDTree {
         HyperPoint hmin = new HyperPoint(min);
         HyperPoint hmax = new HyperPoint(max);
         root = insertByMedianFinding(root, points, hmin, hmax, 0, 0, num - 1);
+        version++;
     }
 
     // quickSort partition function
-    private int partition(HyperPoint[] points, int k, int beg, int end) {
+    static int partition(HyperPoint[] points, int k, int beg, int end) {
         HyperPoint pivot = points[beg];
         int i = beg, j = end + 1;
         while (true) {
@@ -292,7 +450,7 @@ public class KDTree {
 
     // median of medians algorithm
     // Refer to https://en.wikipedia.org/wiki/Median_of_medians
-    private int findMedian(HyperPoint[] points, int k, int beg, int end) {
+    static int findMedian(HyperPoint[] points, int k, int beg, int end) {
         if (beg > end)
             return -1;
         else if (beg == end)
@@ -310,9 +468,11 @@ public class KDTree {
         }
     }
 
-    private Node insertByMedianFinding(Node r, HyperPoint[] points, HyperPoint hmin, HyperPoint hmax, int depth, int i, int j) {
+    Node insertByMedianFinding(Node r, HyperPoint[] points, HyperPoint hmin, HyperPoint hmax, int depth, int i, int j) {
         if (i > j)
             return null;
+        else if (j - i < bucketSize && bucketSize > 1)
+            return newLeaf(hmin, hmax, points, i, j);
         else if (i == j)
             return new Node(new HyperSpace(hmin, hmax), points[i]);
         int k = depth % K;
@@ -331,6 +491,70 @@ public class KDTree {
         return r;
     }
 
+    /*
+     * Parallel version of insertByMedianFinding. After partitioning, the left
+     * and right subranges [i, t - 1] and [t + 1, j] are disjoint, so they are
+     * built by forked tasks. Subranges of at most threshold points are built
+     * sequentially. The resulting tree is the same as the sequential one.
+     */
+    static final int BUILD_THRESHOLD = 1 << 13;
+
+    public void insertByMedianFindingParallel(HyperPoint[] points) {
+        insertByMedianFindingParallel(points, BUILD_THRESHOLD, ForkJoinPool.commonPool());
+    }
+
+    public void insertByMedianFindingParallel(HyperPoint[] points, int threshold, ForkJoinPool pool) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("");
+        int num = points.length;
+        HyperPoint hmin = new HyperPoint(min);
+        HyperPoint hmax = new HyperPoint(max);
+        root = pool.invoke(new BuildTask(root, points, hmin, hmax, 0, 0, num - 1, threshold));
+        version++;
+    }
+
+    class BuildTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+        Node r;
+        HyperPoint[] points;
+        HyperPoint hmin, hmax;
+        int depth, i, j, threshold;
+
+        BuildTask(Node r, HyperPoint[] points, HyperPoint hmin, HyperPoint hmax, int depth, int i, int j, int threshold) {
+            this.r = r;
+            this.points = points;
+            this.hmin = hmin;
+            this.hmax = hmax;
+            this.depth = depth;
+            this.i = i;
+            this.j = j;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Node compute() {
+            if (j - i + 1 <= Math.max(threshold, bucketSize))
+                return insertByMedianFinding(r, points, hmin, hmax, depth, i, j);
+            int k = depth % K;
+            // Find the index of median
+            int t = findMedian(points, k, i, j);
+            HyperPoint p = points[t];
+            if (r == null)
+                r = new Node(new HyperSpace(hmin, hmax), p);
+            double pivot = p.coords[k];
+            HyperPoint hmid1 = new HyperPoint(hmax);
+            hmid1.coords[k] = pivot;
+            HyperPoint hmid2 = new HyperPoint(hmin);
+            hmid2.coords[k] = pivot;
+            BuildTask left = new BuildTask(r.left, points, hmin, hmid1, depth + 1, i, t - 1, threshold);
+            BuildTask right = new BuildTask(r.right, points, hmid2, hmax, depth + 1, t + 1, j, threshold);
+            left.fork();
+            r.right = right.compute();
+            r.left = left.join();
+            return r;
+        }
+    }
+
     /*
      * Nearest Neighbor Finding Record the the node of current best, and
      * continue check the the distance between current node and input node, if
@@ -341,40 +565,376 @@ public class KDTree {
      * is current minimal distance intersects with right branch, algorithm check
      * the right branch.
      */
-    // current best node
-    HyperPoint nmin;
-    // current minimal distance
-    double ndist;
+    // Search state of one query, kept per call so that a tree can be shared
+    // by any number of threads
+    static class Nearest {
+        // current best node
+        HyperPoint nmin;
+        // current minimal distance
+        double ndist;
+        // null unless a listener is set
+        QueryStats stats;
+    }
 
     public HyperPoint nearestPoint(HyperPoint p) {
+        return nearestPoint(p, null);
+    }
+
+    // Same search with the distance to a known point seed as initial bound, seed may be null
+    HyperPoint nearestPoint(HyperPoint p, HyperPoint seed) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
         if (root == null)
             return null;
-        nmin = root.p;
-        ndist = nmin.squareDistanceTo(p);
-        nearestPoint(root, p, 0);
+        Nearest s = new Nearest();
+        s.nmin = seed;
+        s.ndist = seed == null ? Double.POSITIVE_INFINITY : seed.squareDistanceTo(p);
+        QueryListener l = listener;
+        if (l != null)
+            s.stats = new QueryStats();
+        nearestPoint(root, p, 0, s);
+        if (l != null)
+            l.queryDone("nearestPoint", s.stats);
+        return s.nmin;
+    }
+
+    /*
+     * Iterative search, same visiting order as the recursive one : the far
+     * branch of every node is stacked with its pivot on the way down, and the
+     * pruning test is done when it is popped, with the current best distance.
+     */
+    private void nearestPoint(Node r, HyperPoint p, int depth, Nearest s) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            while (r != null) {
+                // descend along the near branches
+                while (r != null) {
+                    if (r.isLeaf()) {
+                        if (s.stats != null) {
+                            s.stats.visits++;
+                            s.stats.points += r.count;
+                        }
+                        for (int i = 0; i < r.count; i++) {
+                            double dist = r.squareDistance(i, p);
+                            if (dist < s.ndist) {
+                                s.nmin = r.bucket[i];
+                                s.ndist = dist;
+                            }
+                        }
+                        break;
+                    }
+                    if (s.stats != null) {
+                        s.stats.visits++;
+                        s.stats.points++;
+                    }
+                    double dist = DistanceKernels.squareDistance(r.p.coords, 0, p.coords, 0, K);
+                    // update current best
+                    if (dist < s.ndist) {
+                        s.nmin = r.p;
+                        s.ndist = dist;
+                    }
+                    int k = depth % K;
+                    double pivot = r.p.coords[k];
+                    Node far;
+                    if (p.coords[k] < pivot) {
+                        far = r.right;
+                        r = r.left;
+                    } else {
+                        far = r.left;
+                        r = r.right;
+                    }
+                    depth++;
+                    if (far != null)
+                        st.push(far, depth, pivot);
+                }
+                // back up to the last far branch intersecting the hypersphere
+                r = null;
+                while (r == null && !st.isEmpty()) {
+                    Node far = (Node) st.pop();
+                    depth = st.depth();
+                    double pivot = st.value();
+                    int k = (depth - 1) % K;
+                    if (p.coords[k] < pivot ? p.coords[k] + Math.sqrt(s.ndist) >= pivot : p.coords[k] - Math.sqrt(s.ndist) <= pivot)
+                        r = far;
+                    else if (s.stats != null)
+                        s.stats.prunes++;
+                }
+            }
+        } finally {
+            st.release();
+        }
+    }
+
+    /*
+     * Approximate Nearest Neighbor Finding (best bin first)
+     * Descends to a leaf and keeps every branch not taken in a priority queue
+     * ordered by the distance from p to the branch's hyperspace. The closest
+     * waiting branch is explored next. The search stops when that distance
+     * times (1 + eps) is not smaller than the current best distance, so the
+     * answer is at most (1 + eps) times farther than the true nearest point,
+     * or when maxVisits nodes have been visited. With eps = 0 and no visit
+     * limit the answer is exact.
+     */
+    static class Branch implements Comparable<Branch> {
+        Node r;
+        int depth;
+        // square distance from the query to r.hs
+        double dist;
+
+        Branch(Node r, int depth, double dist) {
+            this.r = r;
+            this.depth = depth;
+            this.dist = dist;
+        }
+
+        @Override
+        public int compareTo(Branch o) {
+            return Double.compare(dist, o.dist);
+        }
+    }
+
+    public HyperPoint approximateNearestPoint(HyperPoint p, double eps, int maxVisits) {
+        if (eps < 0 || maxVisits < 1 || p.K != K)
+            throw new IllegalArgumentException("");
+        if (root == null)
+            return null;
+        // compare square distances
+        double factor = (1 + eps) * (1 + eps);
+        HyperPoint nmin = null;
+        double ndist = Double.POSITIVE_INFINITY;
+        int visits = 0;
+        PriorityQueue<Branch> queue = new PriorityQueue<Branch>();
+        queue.add(new Branch(root, 0, DistanceKernels.boxSquareDistance(root.hs.min.coords, root.hs.max.coords, p.coords, K)));
+        while (!queue.isEmpty() && visits < maxVisits) {
+            Branch b = queue.poll();
+            if (b.dist * factor >= ndist)
+                break;
+            Node r = b.r;
+            int depth = b.depth;
+            while (r != null && visits < maxVisits) {
+                visits++;
+                if (r.isLeaf()) {
+                    for (int i = 0; i < r.count; i++) {
+                        double dist = r.squareDistance(i, p);
+                        if (dist < ndist) {
+                            nmin = r.bucket[i];
+                            ndist = dist;
+                        }
+                    }
+                    break;
+                }
+                double dist = DistanceKernels.squareDistance(r.p.coords, 0, p.coords, 0, K);
+                // update current best
+                if (dist < ndist) {
+                    nmin = r.p;
+                    ndist = dist;
+                }
+                int k = depth % K;
+                Node near = r.left, far = r.right;
+                if (p.coords[k] >= r.p.coords[k]) {
+                    near = r.right;
+                    far = r.left;
+                }
+                if (far != null) {
+                    double fdist = DistanceKernels.boxSquareDistance(far.hs.min.coords, far.hs.max.coords, p.coords, K);
+                    if (fdist * factor < ndist)
+                        queue.add(new Branch(far, depth + 1, fdist));
+                }
+                r = near;
+                depth++;
+            }
+        }
         return nmin;
     }
 
-    private void nearestPoint(Node r, HyperPoint p, int depth) {
-        if (r == null)
-            return;
-        double dist = r.p.squareDistanceTo(p);
-        // update current best
-        if (dist < ndist) {
-            nmin = r.p;
-            ndist = dist;
+    /*
+     * K Nearest Neighbor Finding, same traversal as nearestPoint but the
+     * current best is a bounded max-heap of k points. A branch is pruned when
+     * the square distance to the splitting plane is not smaller than the k-th
+     * best square distance, so no square root is needed.
+     */
+    public HyperPoint[] kNearest(HyperPoint p, int k) {
+        NeighborHeap<HyperPoint> heap = new NeighborHeap<HyperPoint>(k);
+        int num = kNearest(p, k, heap);
+        HyperPoint[] res = new HyperPoint[num];
+        for (int i = 0; i < num; i++)
+            res[i] = heap.get(i);
+        return res;
+    }
+
+    /*
+     * Fill the caller supplied heap with the k nearest points sorted by
+     * distance and return their number. Reusing the heap across queries
+     * avoids any allocation.
+     */
+    public int kNearest(HyperPoint p, int k, NeighborHeap<HyperPoint> heap) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        heap.reset(k);
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        kNearest(root, p, 0, heap, stats);
+        heap.sort();
+        if (l != null)
+            l.queryDone("kNearest", stats);
+        return heap.size();
+    }
+
+    // Offer the points of this tree to a heap already holding candidates, it is neither reset nor sorted
+    void kNearestMerge(HyperPoint p, NeighborHeap<HyperPoint> heap) {
+        kNearest(root, p, 0, heap, null);
+    }
+
+    // Iterative, as nearestPoint, the far branches are stacked with their distance to the splitting plane
+    private void kNearest(Node r, HyperPoint p, int depth, NeighborHeap<HyperPoint> heap, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            while (r != null) {
+                while (r != null) {
+                    if (stats != null) {
+                        stats.visits++;
+                        stats.points += r.isLeaf() ? r.count : 1;
+                    }
+                    if (r.isLeaf()) {
+                        for (int i = 0; i < r.count; i++)
+                            heap.offer(r.bucket[i], r.squareDistance(i, p));
+                        break;
+                    }
+                    heap.offer(r.p, DistanceKernels.squareDistance(r.p.coords, 0, p.coords, 0, K));
+                    int k = depth % K;
+                    double diff = p.coords[k] - r.p.coords[k];
+                    Node far;
+                    if (diff < 0) {
+                        far = r.right;
+                        r = r.left;
+                    } else {
+                        far = r.left;
+                        r = r.right;
+                    }
+                    depth++;
+                    if (far != null)
+                        st.push(far, depth, diff * diff);
+                }
+                r = null;
+                while (r == null && !st.isEmpty()) {
+                    Node far = (Node) st.pop();
+                    depth = st.depth();
+                    if (st.value() < heap.worst())
+                        r = far;
+                    else if (stats != null)
+                        stats.prunes++;
+                }
+            }
+        } finally {
+            st.release();
         }
-        int k = depth % K;
-        double pivot = r.p.coords[k];
-        if (p.coords[k] < pivot) {
-            nearestPoint(r.left, p, depth + 1);
-            // Hyper space intersect with right branch
-            if (p.coords[k] + Math.sqrt(ndist) >= pivot)
-                nearestPoint(r.right, p, depth + 1);
-        } else {
-            nearestPoint(r.right, p, depth + 1);
-            if (p.coords[k] - Math.sqrt(ndist) <= pivot)
-                nearestPoint(r.left, p, depth + 1);
+    }
+
+    /*
+     * Batch Nearest Neighbor Finding, res[i] is the nearest point of
+     * queries[i]. Queries are split in halves and run on a ForkJoinPool until
+     * a range is smaller than BATCH_THRESHOLD.
+     */
+    static final int BATCH_THRESHOLD = 256;
+
+    public HyperPoint[] nearestPoints(HyperPoint[] queries) {
+        return nearestPoints(queries, ForkJoinPool.commonPool());
+    }
+
+    public HyperPoint[] nearestPoints(HyperPoint[] queries, ForkJoinPool pool) {
+        HyperPoint[] res = new HyperPoint[queries.length];
+        pool.invoke(new NearestTask(queries, res, null, 0, queries.length));
+        return res;
+    }
+
+    /*
+     * Locality ordered Batch Nearest Neighbor Finding, res[i] is the nearest
+     * point of queries[i]. The queries are run in the Morton order of their
+     * cell in the tree space, so consecutive searches walk the same upper
+     * nodes while they are still in cache, and each search starts with the
+     * distance to the previous answer as its bound. On distance ties the
+     * answer may differ from nearestPoint's, it is never farther.
+     */
+    public HyperPoint[] nearestPointsOrdered(HyperPoint[] queries) {
+        return nearestPointsOrdered(queries, ForkJoinPool.commonPool());
+    }
+
+    public HyperPoint[] nearestPointsOrdered(HyperPoint[] queries, ForkJoinPool pool) {
+        HyperPoint[] res = new HyperPoint[queries.length];
+        pool.invoke(new NearestTask(queries, res, mortonOrder(queries), 0, queries.length));
+        return res;
+    }
+
+    // Indexes of the queries sorted by the Morton code of their cell, ties in index order
+    int[] mortonOrder(HyperPoint[] queries) {
+        int num = queries.length;
+        if (num == 0)
+            return new int[0];
+        int idxBits = Morton.indexBits(num);
+        // bits per dimension, dimensions past the code length are ignored
+        int bits = Math.min(21, Math.max(1, (63 - idxBits) / K));
+        int dims = Math.min(K, (63 - idxBits) / bits), cells = 1 << bits;
+        long[] keys = new long[num];
+        int[] c = new int[dims];
+        for (int i = 0; i < num; i++) {
+            HyperPoint q = queries[i];
+            if (q.K != K)
+                throw new IllegalArgumentException("");
+            // cell coordinates once per point, then their bits are interleaved
+            for (int k = 0; k < dims; k++)
+                c[k] = Morton.cell(q.coords[k], min.coords[k], max.coords[k] - min.coords[k], cells, 0, cells - 1);
+            long code = 0;
+            if (dims == 3)
+                code = Morton.encode3(c[0], c[1], c[2]);
+            else if (dims == 2)
+                code = Morton.encode2(c[0], c[1]);
+            else
+                for (int b = bits - 1; b >= 0; b--)
+                    for (int k = dims - 1; k >= 0; k--)
+                        code = code << 1 | (c[k] >>> b & 1);
+            keys[i] = code << idxBits | i;
+        }
+        Arrays.parallelSort(keys);
+        int[] order = new int[num];
+        long mask = (1L << idxBits) - 1;
+        for (int i = 0; i < num; i++)
+            order[i] = (int) (keys[i] & mask);
+        return order;
+    }
+
+    class NearestTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        HyperPoint[] queries, res;
+        // order of the queries, null to run them as given
+        int[] order;
+        int beg, end;
+
+        NearestTask(HyperPoint[] queries, HyperPoint[] res, int[] order, int beg, int end) {
+            this.queries = queries;
+            this.res = res;
+            this.order = order;
+            this.beg = beg;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - beg <= BATCH_THRESHOLD) {
+                if (order == null) {
+                    for (int i = beg; i < end; i++)
+                        res[i] = nearestPoint(queries[i]);
+                    return;
+                }
+                // seed every search with the answer of the previous query
+                HyperPoint prev = null;
+                for (int i = beg; i < end; i++) {
+                    int q = order[i];
+                    res[q] = prev = nearestPoint(queries[q], prev);
+                }
+                return;
+            }
+            int mid = (beg + end) >>> 1;
+            invokeAll(new NearestTask(queries, res, order, beg, mid), new NearestTask(queries, res, order, mid, end));
         }
     }
 
@@ -384,20 +944,187 @@ public class KDTree {
      * be ignore. Otherwise, check the left or right son of current node.
      */
     public Set<HyperPoint> rangeQuery(HyperSpace hs) {
-        Set<HyperPoint> res = new HashSet<HyperPoint>();
-        rangeQuery(root, hs, res);
+        final Set<HyperPoint> res = new HashSet<HyperPoint>();
+        rangeQuery(hs, new PointVisitor<HyperPoint>() {
+            @Override
+            public boolean visit(HyperPoint p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    /*
+     * Streaming Range Search, every point in hs is passed to the visitor
+     * without being collected. Returns false if the visitor stopped the search.
+     */
+    public boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor) {
+        if (hs.K != K)
+            throw new IllegalArgumentException("");
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        boolean res = rangeQuery(root, hs, visitor, stats);
+        if (l != null)
+            l.queryDone("rangeQuery", stats);
+        return res;
+    }
+
+    // Iterative pre-order traversal, left branch first as the recursive one
+    private boolean rangeQuery(Node root, HyperSpace hs, PointVisitor<HyperPoint> visitor, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            if (root != null)
+                st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                // If current node r doesn't intersect with hs, then skip it
+                if (!r.hs.intersects(hs)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.isLeaf() ? r.count : 1;
+                }
+                if (r.isLeaf()) {
+                    for (int i = 0; i < r.count; i++)
+                        if (r.contains(hs, i) && !visitor.visit(r.bucket[i]))
+                            return false;
+                    continue;
+                }
+                if (hs.contains(r.p.coords) && !visitor.visit(r.p))
+                    return false;
+                if (r.right != null)
+                    st.push(r.right, 0, 0);
+                if (r.left != null)
+                    st.push(r.left, 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    // Number of points in hs, nothing is allocated
+    public int rangeCount(HyperSpace hs) {
+        if (hs.K != K)
+            throw new IllegalArgumentException("");
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        int res = rangeCount(root, hs, stats);
+        if (l != null)
+            l.queryDone("rangeCount", stats);
         return res;
     }
 
-    private void rangeQuery(Node r, HyperSpace hs, Set<HyperPoint> res) {
-        // If current node r is null or doesn't intersect with hs, then return
-        if (r == null || !r.hs.intersects(hs))
-            return;
-        if (hs.contains(r.p))
-            res.add(r.p);
-        // recursively check the left, right branch of current node
-        rangeQuery(r.left, hs, res);
-        rangeQuery(r.right, hs, res);
+    private int rangeCount(Node root, HyperSpace hs, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            int res = 0;
+            if (root != null)
+                st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.hs.intersects(hs)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.isLeaf() ? r.count : 1;
+                }
+                if (r.isLeaf()) {
+                    for (int i = 0; i < r.count; i++)
+                        if (r.contains(hs, i))
+                            res++;
+                    continue;
+                }
+                if (hs.contains(r.p.coords))
+                    res++;
+                if (r.right != null)
+                    st.push(r.right, 0, 0);
+                if (r.left != null)
+                    st.push(r.left, 0, 0);
+            }
+            return res;
+        } finally {
+            st.release();
+        }
+    }
+
+    /*
+     * Radius Search, every point whose distance to p is at most radius. A
+     * subtree is pruned when the distance from p to its hyperspace is larger
+     * than radius, all comparisons use square distances.
+     */
+    public List<HyperPoint> withinRadius(final HyperPoint p, double radius, boolean sorted) {
+        final List<HyperPoint> res = new ArrayList<HyperPoint>();
+        withinRadius(p, radius, new PointVisitor<HyperPoint>() {
+            @Override
+            public boolean visit(HyperPoint q) {
+                res.add(q);
+                return true;
+            }
+        });
+        // Sort by distance to p
+        if (sorted)
+            Collections.sort(res, new Comparator<HyperPoint>() {
+                @Override
+                public int compare(HyperPoint o1, HyperPoint o2) {
+                    return Double.compare(DistanceKernels.squareDistance(o1.coords, 0, p.coords, 0, K), DistanceKernels.squareDistance(o2.coords, 0, p.coords, 0, K));
+                }
+            });
+        return res;
+    }
+
+    // Streaming Radius Search, returns false if the visitor stopped the search
+    public boolean withinRadius(HyperPoint p, double radius, PointVisitor<HyperPoint> visitor) {
+        if (radius < 0 || p.K != K)
+            throw new IllegalArgumentException("");
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        boolean res = withinRadius(root, p, radius * radius, visitor, stats);
+        if (l != null)
+            l.queryDone("withinRadius", stats);
+        return res;
+    }
+
+    private boolean withinRadius(Node root, HyperPoint p, double r2, PointVisitor<HyperPoint> visitor, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            if (root != null)
+                st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (DistanceKernels.boxSquareDistance(r.hs.min.coords, r.hs.max.coords, p.coords, K) > r2) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.isLeaf() ? r.count : 1;
+                }
+                if (r.isLeaf()) {
+                    for (int i = 0; i < r.count; i++)
+                        if (r.squareDistance(i, p) <= r2 && !visitor.visit(r.bucket[i]))
+                            return false;
+                    continue;
+                }
+                if (DistanceKernels.squareDistance(r.p.coords, 0, p.coords, 0, K) <= r2 && !visitor.visit(r.p))
+                    return false;
+                if (r.right != null)
+                    st.push(r.right, 0, 0);
+                if (r.left != null)
+                    st.push(r.left, 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
     }
 
     // Test Code
@@ -0,0 +1,147 @@
+package code;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Linear OctTree implementation
+ * Features :
+ * Pointerless : points are sorted by Morton code into flat arrays, a cell is
+ * the range of points whose codes share its prefix, there are no Node objects
+ * Insert : bulk load, sorting once in parallel
+ * Search : Range Search, same results as OctTree.queryRange
+ * Refer to https://en.wikipedia.org/wiki/Octree#Linear_octree
+ *
+ * The query box is mapped onto the grid with the same rounding as the
+ * points, so cells strictly inside it are reported as one sequential scan
+ * without any point test, and only the boundary cells test their points.
+ * */
+public class LinearOctTree {
+    Cubiod boundary;
+    int nodeCapacity = 4;
+    // depth of the grid, there are 2^levels cells per side at the bottom
+    int levels;
+    int n;
+    // sorted Morton codes, codes[i] is the bottom cell of points[i]
+    long[] codes;
+    Point3D[] points;
+
+    public LinearOctTree(Cubiod boundary, int nodeCapacity) {
+        if (nodeCapacity < 1)
+            throw new IllegalArgumentException("");
+        this.boundary = boundary;
+        this.nodeCapacity = nodeCapacity;
+        codes = new long[0];
+        points = new Point3D[0];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /*
+     * Bulk load, replaces the content of the tree. Points outside the boundary
+     * are ignored, as OctTree.insert does. Each key packs the Morton code
+     * above the index of its point, so one parallel sort of primitive longs
+     * orders the points.
+     */
+    public void insertAll(Point3D[] input) {
+        Point3D[] in = new Point3D[input.length];
+        int num = 0;
+        for (Point3D p : input)
+            if (boundary.containsPoint(p))
+                in[num++] = p;
+        int bits = Morton.indexBits(num);
+        levels = Math.min(21, (63 - bits) / 3);
+        int cells = 1 << levels;
+        long[] keys = new long[num];
+        for (int i = 0; i < num; i++)
+            keys[i] = encode(in[i], cells) << bits | i;
+        Arrays.parallelSort(keys);
+        n = num;
+        codes = new long[n];
+        points = new Point3D[n];
+        long mask = (1L << bits) - 1;
+        for (int i = 0; i < n; i++) {
+            codes[i] = keys[i] >>> bits;
+            points[i] = in[(int) (keys[i] & mask)];
+        }
+    }
+
+    private long encode(Point3D p, int cells) {
+        Point3D min = boundary.min;
+        double len = boundary.length;
+        return Morton.encode3(Morton.cell(p.x, min.x, len, cells, 0, cells - 1), Morton.cell(p.y, min.y, len, cells, 0, cells - 1),
+                Morton.cell(p.z, min.z, len, cells, 0, cells - 1));
+    }
+
+    public Set<Point3D> queryRange(Cubiod range) {
+        final Set<Point3D> res = new HashSet<Point3D>();
+        queryRange(range, new PointVisitor<Point3D>() {
+            @Override
+            public boolean visit(Point3D p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    public int rangeCount(Cubiod range) {
+        final int[] res = new int[1];
+        queryRange(range, new PointVisitor<Point3D>() {
+            @Override
+            public boolean visit(Point3D p) {
+                res[0]++;
+                return true;
+            }
+        });
+        return res[0];
+    }
+
+    // Same cell walk as LinearQuadTree.queryRange, with three grid coordinates
+    public boolean queryRange(Cubiod range, PointVisitor<Point3D> visitor) {
+        if (n == 0)
+            return true;
+        int cells = 1 << levels;
+        Point3D min = boundary.min;
+        double len = boundary.length;
+        // range in grid coordinates, one cell beyond the grid when it overflows
+        int[] q = { Morton.cell(range.min.x, min.x, len, cells, -1, cells), Morton.cell(range.min.y, min.y, len, cells, -1, cells),
+                Morton.cell(range.min.z, min.z, len, cells, -1, cells), Morton.cell(range.max.x, min.x, len, cells, -1, cells),
+                Morton.cell(range.max.y, min.y, len, cells, -1, cells), Morton.cell(range.max.z, min.z, len, cells, -1, cells) };
+        return queryRange(0, 0, 0, 0, 0, 0, n, q, range, visitor);
+    }
+
+    private boolean queryRange(int level, long prefix, int cx, int cy, int cz, int beg, int end, int[] q, Cubiod range, PointVisitor<Point3D> visitor) {
+        // bottom cells covered by the current cell
+        int s = 1 << (levels - level);
+        int x0 = cx * s, y0 = cy * s, z0 = cz * s;
+        int x1 = x0 + s - 1, y1 = y0 + s - 1, z1 = z0 + s - 1;
+        if (x0 > q[3] || x1 < q[0] || y0 > q[4] || y1 < q[1] || z0 > q[5] || z1 < q[2])
+            return true;
+        if (x0 > q[0] && x1 < q[3] && y0 > q[1] && y1 < q[4] && z0 > q[2] && z1 < q[5]) {
+            // strictly inside the range
+            for (int i = beg; i < end; i++)
+                if (!visitor.visit(points[i]))
+                    return false;
+            return true;
+        }
+        if (end - beg <= nodeCapacity || level == levels) {
+            for (int i = beg; i < end; i++)
+                if (range.containsPoint(points[i]) && !visitor.visit(points[i]))
+                    return false;
+            return true;
+        }
+        int shift = 3 * (levels - level - 1);
+        for (int c = 0, b = beg; c < 8 && b < end; c++) {
+            long child = prefix << 3 | c;
+            int e = c == 7 ? end : Morton.lowerBound(codes, b, end, (child + 1) << shift);
+            if (b < e && !queryRange(level + 1, child, cx << 1 | (c & 1), cy << 1 | (c >> 1 & 1), cz << 1 | (c >> 2), b, e, q, range, visitor))
+                return false;
+            b = e;
+        }
+        return true;
+    }
+}
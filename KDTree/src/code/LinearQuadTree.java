@@ -0,0 +1,139 @@
+package code;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Linear QuadTree implementation
+ * Features :
+ * Pointerless : points are sorted by Morton code into flat arrays, a cell is
+ * the range of points whose codes share its prefix, there are no Node objects
+ * Insert : bulk load, sorting once in parallel
+ * Search : Range Search, same results as QuadTree.queryRange
+ * Refer to https://en.wikipedia.org/wiki/Quadtree
+ *
+ * As in LinearOctTree, cells strictly inside the query are reported as one
+ * sequential scan, only the boundary cells test their points.
+ * */
+public class LinearQuadTree {
+    Rect boundary;
+    int nodeCapacity = 4;
+    // depth of the grid, there are 2^levels cells per side at the bottom
+    int levels;
+    int n;
+    // sorted Morton codes, codes[i] is the bottom cell of points[i]
+    long[] codes;
+    Point2D[] points;
+
+    public LinearQuadTree(Rect boundary, int nodeCapacity) {
+        if (nodeCapacity < 1)
+            throw new IllegalArgumentException("");
+        this.boundary = boundary;
+        this.nodeCapacity = nodeCapacity;
+        codes = new long[0];
+        points = new Point2D[0];
+    }
+
+    public int size() {
+        return n;
+    }
+
+    // Bulk load, replaces the content of the tree, points outside the boundary are ignored
+    public void insertAll(Point2D[] input) {
+        Point2D[] in = new Point2D[input.length];
+        int num = 0;
+        for (Point2D p : input)
+            if (boundary.containsPoint(p))
+                in[num++] = p;
+        int bits = Morton.indexBits(num);
+        levels = Math.min(30, (63 - bits) / 2);
+        int cells = 1 << levels;
+        long[] keys = new long[num];
+        for (int i = 0; i < num; i++)
+            keys[i] = encode(in[i], cells) << bits | i;
+        Arrays.parallelSort(keys);
+        n = num;
+        codes = new long[n];
+        points = new Point2D[n];
+        long mask = (1L << bits) - 1;
+        for (int i = 0; i < n; i++) {
+            codes[i] = keys[i] >>> bits;
+            points[i] = in[(int) (keys[i] & mask)];
+        }
+    }
+
+    private long encode(Point2D p, int cells) {
+        Point2D min = boundary.min;
+        double len = boundary.length;
+        return Morton.encode2(Morton.cell(p.x, min.x, len, cells, 0, cells - 1), Morton.cell(p.y, min.y, len, cells, 0, cells - 1));
+    }
+
+    public Set<Point2D> queryRange(Rect range) {
+        final Set<Point2D> res = new HashSet<Point2D>();
+        queryRange(range, new PointVisitor<Point2D>() {
+            @Override
+            public boolean visit(Point2D p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    public int rangeCount(Rect range) {
+        final int[] res = new int[1];
+        queryRange(range, new PointVisitor<Point2D>() {
+            @Override
+            public boolean visit(Point2D p) {
+                res[0]++;
+                return true;
+            }
+        });
+        return res[0];
+    }
+
+    // Walks the Morton cells overlapping range, cells strictly inside it are visited without point tests
+    public boolean queryRange(Rect range, PointVisitor<Point2D> visitor) {
+        if (n == 0)
+            return true;
+        int cells = 1 << levels;
+        Point2D min = boundary.min;
+        double len = boundary.length;
+        // range in grid coordinates, one cell beyond the grid when it overflows
+        int[] q = { Morton.cell(range.min.x, min.x, len, cells, -1, cells), Morton.cell(range.min.y, min.y, len, cells, -1, cells),
+                Morton.cell(range.max.x, min.x, len, cells, -1, cells), Morton.cell(range.max.y, min.y, len, cells, -1, cells) };
+        return queryRange(0, 0, 0, 0, 0, n, q, range, visitor);
+    }
+
+    private boolean queryRange(int level, long prefix, int cx, int cy, int beg, int end, int[] q, Rect range, PointVisitor<Point2D> visitor) {
+        // bottom cells covered by the current cell
+        long s = 1L << (levels - level);
+        long x0 = cx * s, y0 = cy * s;
+        long x1 = x0 + s - 1, y1 = y0 + s - 1;
+        if (x0 > q[2] || x1 < q[0] || y0 > q[3] || y1 < q[1])
+            return true;
+        if (x0 > q[0] && x1 < q[2] && y0 > q[1] && y1 < q[3]) {
+            // strictly inside the range
+            for (int i = beg; i < end; i++)
+                if (!visitor.visit(points[i]))
+                    return false;
+            return true;
+        }
+        if (end - beg <= nodeCapacity || level == levels) {
+            for (int i = beg; i < end; i++)
+                if (range.containsPoint(points[i]) && !visitor.visit(points[i]))
+                    return false;
+            return true;
+        }
+        int shift = 2 * (levels - level - 1);
+        for (int c = 0, b = beg; c < 4 && b < end; c++) {
+            long child = prefix << 2 | c;
+            int e = c == 3 ? end : Morton.lowerBound(codes, b, end, (child + 1) << shift);
+            if (b < e && !queryRange(level + 1, child, cx << 1 | (c & 1), cy << 1 | (c >> 1), b, e, q, range, visitor))
+                return false;
+            b = e;
+        }
+        return true;
+    }
+}
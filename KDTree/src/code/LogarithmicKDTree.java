@@ -0,0 +1,152 @@
+package code;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Logarithmic KDTree implementation
+ * Features :
+ * Insert : SingleNode insert, amortized O(log(n) * log(n))
+ * Search : Range Search, Nearest and K Nearest NeighBor Search over balanced static trees
+ * Refer to the logarithmic method of Bentley and Saxe, "Decomposable searching problems I"
+ *
+ * Level i is either empty or holds exactly 2^i points in a KDTree built by
+ * median finding, so the levels follow the binary digits of size. An insert
+ * takes p and the points of the full levels 0..i-1 into the first empty
+ * level i and rebuilds it; a point moves up O(log(n)) times, each time in
+ * an O(m log(m)) build. Every tree stays perfectly balanced, and a query
+ * runs on the O(log(n)) non empty levels, largest first, the best distance
+ * found so far bounding the search of the next ones. A level whose bounding
+ * box is out of the range, or not closer than that distance, is skipped.
+ * */
+public class LogarithmicKDTree implements PointIndex {
+    int K;
+    HyperPoint min, max;
+    // points[i] and trees[i] are null or hold 2^i points
+    HyperPoint[][] points = new HyperPoint[31][];
+    KDTree[] trees = new KDTree[31];
+    // bounding box of the points of each level
+    HyperSpace[] boxes = new HyperSpace[31];
+    int size;
+
+    public LogarithmicKDTree(int K, HyperPoint min, HyperPoint max) {
+        if (min.K != K || max.K != K)
+            throw new IllegalArgumentException("");
+        this.K = K;
+        this.min = min;
+        this.max = max;
+    }
+
+    // Bulk load, the levels are the binary digits of points.length
+    public LogarithmicKDTree(int K, HyperPoint min, HyperPoint max, HyperPoint[] points) {
+        this(K, min, max);
+        int from = 0;
+        for (int i = 30; i >= 0; i--) {
+            if ((points.length >> i & 1) == 0)
+                continue;
+            HyperPoint[] level = new HyperPoint[1 << i];
+            System.arraycopy(points, from, level, 0, level.length);
+            from += level.length;
+            build(i, level);
+        }
+        size = points.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void insert(HyperPoint p) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        // first empty level, all the levels below are full
+        int i = Integer.numberOfTrailingZeros(~size);
+        if (i > 30)
+            throw new IllegalStateException("");
+        HyperPoint[] level = new HyperPoint[1 << i];
+        level[0] = p;
+        for (int j = 0, from = 1; j < i; j++) {
+            System.arraycopy(points[j], 0, level, from, 1 << j);
+            from += 1 << j;
+            points[j] = null;
+            trees[j] = null;
+            boxes[j] = null;
+        }
+        build(i, level);
+        size++;
+    }
+
+    private void build(int i, HyperPoint[] level) {
+        HyperPoint lo = new HyperPoint(level[0]), hi = new HyperPoint(level[0]);
+        for (HyperPoint p : level)
+            for (int k = 0; k < K; k++) {
+                lo.coords[k] = Math.min(lo.coords[k], p.coords[k]);
+                hi.coords[k] = Math.max(hi.coords[k], p.coords[k]);
+            }
+        KDTree tree = new KDTree(K, min, max);
+        tree.insertByMedianFinding(level);
+        points[i] = level;
+        trees[i] = tree;
+        boxes[i] = new HyperSpace(lo, hi);
+    }
+
+    @Override
+    public HyperPoint nearestPoint(HyperPoint p) {
+        HyperPoint res = null;
+        for (int i = 30; i >= 0; i--)
+            if (trees[i] != null && (res == null || boxes[i].squareDistanceTo(p) < res.squareDistanceTo(p)))
+                res = trees[i].nearestPoint(p, res);
+        return res;
+    }
+
+    public HyperPoint[] kNearest(HyperPoint p, int k) {
+        NeighborHeap<HyperPoint> heap = new NeighborHeap<HyperPoint>(k);
+        int num = kNearest(p, k, heap);
+        HyperPoint[] res = new HyperPoint[num];
+        for (int i = 0; i < num; i++)
+            res[i] = heap.get(i);
+        return res;
+    }
+
+    // Merges the trees whose box is nearer than the k-th best into heap, sorted at the end; returns the number of points
+    public int kNearest(HyperPoint p, int k, NeighborHeap<HyperPoint> heap) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        heap.reset(k);
+        for (int i = 30; i >= 0; i--)
+            if (trees[i] != null && boxes[i].squareDistanceTo(p) < heap.worst())
+                trees[i].kNearestMerge(p, heap);
+        heap.sort();
+        return heap.size();
+    }
+
+    @Override
+    public Set<HyperPoint> rangeQuery(HyperSpace hs) {
+        final Set<HyperPoint> res = new HashSet<HyperPoint>();
+        rangeQuery(hs, new PointVisitor<HyperPoint>() {
+            @Override
+            public boolean visit(HyperPoint p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor) {
+        for (int i = 30; i >= 0; i--)
+            if (trees[i] != null && boxes[i].intersects(hs) && !trees[i].rangeQuery(hs, visitor))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int rangeCount(HyperSpace hs) {
+        int res = 0;
+        for (int i = 30; i >= 0; i--)
+            if (trees[i] != null && boxes[i].intersects(hs))
+                res += trees[i].rangeCount(hs);
+        return res;
+    }
+}
@@ -0,0 +1,160 @@
+package code;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Memory mapped read only KDTree
+ * Features :
+ * Save : write a built StaticKDTree (or a MappedKDTree) to a compact binary file
+ * Load : map the file read only, queries read the coordinates straight from
+ * the mapped buffer, there is no deserialization pass
+ * Search : same as StaticKDTree, see ImplicitKDTree
+ *
+ * File format, little endian :
+ * int magic, int version, int K, int n
+ * double[K] min, double[K] max
+ * double[n * K] coords, in the implicit median layout of StaticKDTree
+ * The coords are mapped in segments of 1 << SHIFT doubles (1GB), so the
+ * file is not limited by the 2GB of a single mapping, only n * K must fit
+ * in an int.
+ * */
+public class MappedKDTree extends ImplicitKDTree {
+    static final int MAGIC = 0x4B445431;
+    static final int VERSION = 1;
+    static final int HEADER = 16;
+    static final int SHIFT = 27;
+
+    // coordinate c is segments[c >>> shift].get(c & mask)
+    final DoubleBuffer[] segments;
+    final int shift, mask;
+
+    private MappedKDTree(int K, HyperPoint min, HyperPoint max, int n, DoubleBuffer[] segments, int shift) {
+        super(K, min, max);
+        this.n = n;
+        this.segments = segments;
+        this.shift = shift;
+        mask = (1 << shift) - 1;
+    }
+
+    @Override
+    double coord(int c) {
+        return segments[c >>> shift].get(c & mask);
+    }
+
+    // Same summation order as DistanceKernels.squareDistance
+    @Override
+    double squareDistance(int i, HyperPoint p) {
+        int off = i * K;
+        DoubleBuffer data = segments[off >>> shift];
+        off &= mask;
+        if (off + K > data.limit()) {
+            // the point spans two segments
+            double[] c = new double[K];
+            for (int k = 0; k < K; k++)
+                c[k] = coord(i * K + k);
+            return DistanceKernels.squareDistance(c, 0, p.coords, 0, K);
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int k = 0;
+        for (; k + 3 < K; k += 4) {
+            double d0 = data.get(off + k) - p.coords[k];
+            double d1 = data.get(off + k + 1) - p.coords[k + 1];
+            double d2 = data.get(off + k + 2) - p.coords[k + 2];
+            double d3 = data.get(off + k + 3) - p.coords[k + 3];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        for (; k < K; k++) {
+            double d = data.get(off + k) - p.coords[k];
+            s0 += d * d;
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public static void write(ImplicitKDTree t, File file) throws IOException {
+        int K = t.K, n = t.n;
+        if ((long) n * K > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(K).putInt(n);
+            // the bounds of a large K do not fit in one buffer either
+            for (int k = 0; k < 2 * K; k++) {
+                if (buf.remaining() < 8)
+                    flush(ch, buf);
+                buf.putDouble(k < K ? t.min.coords[k] : t.max.coords[k - K]);
+            }
+            for (int c = 0; c < n * K; c++) {
+                if (buf.remaining() < 8)
+                    flush(ch, buf);
+                buf.putDouble(t.coord(c));
+            }
+            flush(ch, buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write(buf);
+        buf.clear();
+    }
+
+    // length bytes of ch from position, null if the file is shorter
+    private static ByteBuffer read(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining())
+            if (ch.read(buf, position + buf.position()) < 0)
+                return null;
+        buf.flip();
+        return buf;
+    }
+
+    public static MappedKDTree load(File file) throws IOException {
+        return load(file, SHIFT);
+    }
+
+    // Maps the coords in segments of 1 << shift doubles
+    static MappedKDTree load(File file, int shift) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer buf = read(ch, 0, HEADER);
+            if (buf == null || buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException("not a KDTree file : " + file);
+            int K = buf.getInt(), n = buf.getInt();
+            long size = (long) n * K, base = HEADER + 16L * K;
+            if (K <= 0 || n < 0 || size > Integer.MAX_VALUE || ch.size() != base + 8 * size)
+                throw new IOException("corrupted KDTree file : " + file);
+            buf = read(ch, HEADER, 16 * K);
+            double[] min = new double[K], max = new double[K];
+            for (int k = 0; k < K; k++)
+                min[k] = buf.getDouble();
+            for (int k = 0; k < K; k++)
+                max[k] = buf.getDouble();
+            DoubleBuffer[] segments = new DoubleBuffer[(int) ((size + (1L << shift) - 1) >> shift)];
+            for (int s = 0; s < segments.length; s++) {
+                long from = (long) s << shift, count = Math.min(1L << shift, size - from);
+                // The mappings stay valid after the channel is closed
+                segments[s] = ch.map(FileChannel.MapMode.READ_ONLY, base + 8 * from, 8 * count)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            return new MappedKDTree(K, new HyperPoint(min), new HyperPoint(max), n, segments, shift);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package code;
+
+/*
+ * Morton (Z-order) codes
+ * The bits of the cell coordinates are interleaved, x in the lowest bit, so
+ * sorting by code lists the points cell by cell and every cell of the tree is
+ * a contiguous range of codes.
+ * Refer to https://en.wikipedia.org/wiki/Z-order_curve
+ * */
+final class Morton {
+    private Morton() {
+    }
+
+    // Spread the low 21 bits of v, two zero bits between each
+    static long spread3(long v) {
+        v &= 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    // Spread the low 32 bits of v, one zero bit between each
+    static long spread2(long v) {
+        v &= 0xffffffffL;
+        v = (v | v << 16) & 0x0000ffff0000ffffL;
+        v = (v | v << 8) & 0x00ff00ff00ff00ffL;
+        v = (v | v << 4) & 0x0f0f0f0f0f0f0f0fL;
+        v = (v | v << 2) & 0x3333333333333333L;
+        v = (v | v << 1) & 0x5555555555555555L;
+        return v;
+    }
+
+    static long encode3(int x, int y, int z) {
+        return spread3(x) | spread3(y) << 1 | spread3(z) << 2;
+    }
+
+    static long encode2(int x, int y) {
+        return spread2(x) | spread2(y) << 1;
+    }
+
+    // Cell of coordinate v on a grid of cells cells over [min, min + length], clamped to [lo, hi]
+    static int cell(double v, double min, double length, int cells, int lo, int hi) {
+        double c = Math.floor((v - min) / length * cells);
+        return (int) Math.max(lo, Math.min(hi, c));
+    }
+
+    // Number of bits needed to store the indexes 0 .. n - 1
+    static int indexBits(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+    }
+
+    // First index in a[beg, end) whose value is not less than key
+    static int lowerBound(long[] a, int beg, int end, long key) {
+        while (beg < end) {
+            int mid = (beg + end) >>> 1;
+            if (a[mid] < key)
+                beg = mid + 1;
+            else
+                end = mid;
+        }
+        return beg;
+    }
+}
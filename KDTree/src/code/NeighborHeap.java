@@ -0,0 +1,131 @@
+package code;
+
+/*
+ * Bounded priority queue for k nearest neighbor search
+ * Keeps the k closest points offered so far in a max-heap on the square
+ * distance, so the k-th best distance used for pruning is heap[0].
+ * The arrays are allocated once, a heap can be reset and reused by repeated
+ * queries without allocation.
+ * */
+public class NeighborHeap<T> {
+    Object[] items;
+    // square distances, dists[i] belongs to items[i]
+    double[] dists;
+    int size, k;
+    // only points closer than bound are kept
+    double bound = Double.POSITIVE_INFINITY;
+    boolean sorted;
+
+    public NeighborHeap(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("");
+        items = new Object[capacity];
+        dists = new double[capacity];
+        k = capacity;
+    }
+
+    // Empty the heap and bound it to k neighbors, k must not exceed capacity
+    public void reset(int k) {
+        reset(k, Double.POSITIVE_INFINITY);
+    }
+
+    /*
+     * Same, and points whose square distance is not smaller than bound are
+     * rejected, so that a search can be pruned by a k-th best distance
+     * already known, e.g. from another tree.
+     */
+    public void reset(int k, double bound) {
+        if (k <= 0 || k > items.length)
+            throw new IllegalArgumentException("");
+        this.bound = bound;
+        for (int i = 0; i < size; i++)
+            items[i] = null;
+        this.k = k;
+        size = 0;
+        sorted = false;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    // The k-th best square distance, the bound while less than k points are kept
+    public double worst() {
+        return size < k ? bound : dists[0];
+    }
+
+    public void offer(T p, double dist) {
+        if (sorted)
+            throw new IllegalStateException("");
+        if (dist >= bound)
+            return;
+        if (size < k) {
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (dists[parent] >= dist)
+                    break;
+                items[i] = items[parent];
+                dists[i] = dists[parent];
+                i = parent;
+            }
+            items[i] = p;
+            dists[i] = dist;
+        } else if (dist < dists[0])
+            siftDown(p, dist, 0, size);
+    }
+
+    private void siftDown(Object p, double dist, int i, int n) {
+        while (true) {
+            int c = 2 * i + 1;
+            if (c >= n)
+                break;
+            if (c + 1 < n && dists[c + 1] > dists[c])
+                c++;
+            if (dists[c] <= dist)
+                break;
+            items[i] = items[c];
+            dists[i] = dists[c];
+            i = c;
+        }
+        items[i] = p;
+        dists[i] = dist;
+    }
+
+    // Heap sort in place, afterwards get(0) is the nearest neighbor
+    public void sort() {
+        if (sorted)
+            return;
+        for (int n = size - 1; n > 0; n--) {
+            Object p = items[n];
+            double dist = dists[n];
+            items[n] = items[0];
+            dists[n] = dists[0];
+            siftDown(p, dist, 0, n);
+        }
+        sorted = true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("");
+        return (T) items[i];
+    }
+
+    // Square distance of the i-th neighbor
+    public double distance(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException("");
+        return dists[i];
+    }
+}
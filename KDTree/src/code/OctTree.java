@@ -1,12 +1,18 @@
 package code;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 /*
  * OctTree implementation
  * Features :
- * Search : Range Search
- * Insert : SingleNode insert
+ * Search : Range Search (streaming visitor, count only), Radius Search, Nearest and K Nearest NeighBor Search
+ * Insert : SingleNode insert, iterative, repeated copies of a point share a node
+ * Metrics : same query instrumentation and treeStats as KDTree
  * Refer to https://en.wikipedia.org/wiki/Octree
  * Author : linpc2013
  * */
@@ -19,6 +25,11 @@ class Point3D {
         this.z = z;
     }
 
+    public double squareDistanceTo(Point3D p) {
+        double dx = x - p.x, dy = y - p.y, dz = z - p.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     public String toString() {
         return "(" + x + ", " + y + ", " + z + ")";
     }
@@ -42,6 +53,14 @@ class Cubiod {
         return !(r.min.x > max.x || r.min.y > max.y || r.max.x < min.x || r.max.y < min.y || r.max.z < min.z || r.min.z > max.z);
     }
 
+    // The square of Euclidean Distance from p to the closest point of the cubiod
+    public double squareDistanceTo(Point3D p) {
+        double dx = Math.max(0, Math.max(min.x - p.x, p.x - max.x));
+        double dy = Math.max(0, Math.max(min.y - p.y, p.y - max.y));
+        double dz = Math.max(0, Math.max(min.z - p.z, p.z - max.z));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
     public String toString() {
         return "min : " + min + " len: " + length;
     }
@@ -68,35 +87,50 @@ public class OctTree {
         }
 
         public void addPoint(Point3D p) {
+            if (count == points.length)
+                points = Arrays.copyOf(points, count * 2 + 1);
             points[count++] = p;
         }
+
+        // Whether every point of the node is at the same place as p
+        boolean duplicates(Point3D p) {
+            for (int i = 0; i < count; i++)
+                if (points[i].x != p.x || points[i].y != p.y || points[i].z != p.z)
+                    return false;
+            return true;
+        }
     }
 
     Node root;
     int nodeCapacity = 4;
+    // Receives the counters of every query, null disables them
+    QueryListener listener;
 
     public OctTree(Cubiod boundary, int nodeCapacity) {
         this.nodeCapacity = nodeCapacity;
         root = new Node(boundary);
     }
 
+    // Iterative insert, same rules as QuadTree.insert, a point no child contains stays in r
     public void insert(Point3D p) {
-        insert(root, p);
-    }
-
-    private boolean insert(Node r, Point3D p) {
-        if (r == null || !r.boundary.containsPoint(p))
-            return false;
-        if (r.size() < nodeCapacity) {
-            r.addPoint(p);
-            return true;
+        Node r = root;
+        if (!r.boundary.containsPoint(p))
+            return;
+        while (r.size() >= nodeCapacity) {
+            if (r.dirs[0] == null) {
+                if (r.duplicates(p))
+                    break;
+                subdivide(r);
+            }
+            Node next = null;
+            for (int i = 0; i < SIZE && next == null; i++)
+                if (r.dirs[i].boundary.containsPoint(p))
+                    next = r.dirs[i];
+            if (next == null)
+                break;
+            r = next;
         }
-        if (r.dirs[0] == null)
-            subdivide(r);
-        for (int i = 0; i < SIZE; i++)
-            if (insert(r.dirs[i], p))
-                return true;
-        return false;
+        r.addPoint(p);
     }
 
     private void subdivide(Node r) {
@@ -108,22 +142,266 @@ public class OctTree {
         }
     }
 
+    // Query instrumentation, see KDTree.setQueryListener
+    public void setQueryListener(QueryListener listener) {
+        this.listener = listener;
+    }
+
+    // Depth, balance and node occupancy of the current tree, every childless node is a leaf
+    public TreeStats treeStats() {
+        TreeStats ts = new TreeStats();
+        treeStats(root, 1, ts);
+        return ts;
+    }
+
+    private void treeStats(Node root, int depth, TreeStats ts) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, depth, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                depth = st.depth();
+                ts.node(depth, r.size());
+                if (r.dirs[0] == null) {
+                    ts.leaf(depth, r.size());
+                    continue;
+                }
+                for (int i = SIZE - 1; i >= 0; i--)
+                    st.push(r.dirs[i], depth + 1, 0);
+            }
+        } finally {
+            st.release();
+        }
+    }
+
     public Set<Point3D> queryRange(Cubiod range) {
-        Set<Point3D> res = new HashSet<Point3D>();
-        queryRange(root, range, res);
+        final Set<Point3D> res = new HashSet<Point3D>();
+        queryRange(range, new PointVisitor<Point3D>() {
+            @Override
+            public boolean visit(Point3D p) {
+                res.add(p);
+                return true;
+            }
+        });
         return res;
     }
 
-    private void queryRange(Node r, Cubiod range, Set<Point3D> res) {
-        if (r == null || !r.boundary.intersects(range))
-            return;
-        for (int i = 0; i < r.size(); i++) {
-            Point3D p = r.points[i];
-            if (range.containsPoint(p))
-                res.add(p);
+    // Same as QuadTree.queryRange with a visitor, over the eight octants
+    public boolean queryRange(Cubiod range, PointVisitor<Point3D> visitor) {
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        boolean res = queryRange(root, range, visitor, stats);
+        if (l != null)
+            l.queryDone("queryRange", stats);
+        return res;
+    }
+
+    // Iterative, the octants are stacked in reverse so they are popped in the order of dirs
+    private boolean queryRange(Node root, Cubiod range, PointVisitor<Point3D> visitor, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++) {
+                    Point3D p = r.points[i];
+                    if (range.containsPoint(p) && !visitor.visit(p))
+                        return false;
+                }
+                if (r.dirs[0] != null)
+                    for (int i = SIZE - 1; i >= 0; i--)
+                        st.push(r.dirs[i], 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    // Number of points in range, nothing is allocated
+    public int rangeCount(Cubiod range) {
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        int res = rangeCount(root, range, stats);
+        if (l != null)
+            l.queryDone("rangeCount", stats);
+        return res;
+    }
+
+    private int rangeCount(Node root, Cubiod range, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            int res = 0;
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++)
+                    if (range.containsPoint(r.points[i]))
+                        res++;
+                if (r.dirs[0] != null)
+                    for (int i = SIZE - 1; i >= 0; i--)
+                        st.push(r.dirs[i], 0, 0);
+            }
+            return res;
+        } finally {
+            st.release();
+        }
+    }
+
+    /*
+     * Radius Search, every point whose distance to p is at most radius.
+     * Cells farther than radius from p are pruned.
+     */
+    public List<Point3D> withinRadius(final Point3D p, double radius, boolean sorted) {
+        final List<Point3D> res = new ArrayList<Point3D>();
+        withinRadius(p, radius, new PointVisitor<Point3D>() {
+            @Override
+            public boolean visit(Point3D q) {
+                res.add(q);
+                return true;
+            }
+        });
+        // Sort by distance to p
+        if (sorted)
+            Collections.sort(res, new Comparator<Point3D>() {
+                @Override
+                public int compare(Point3D o1, Point3D o2) {
+                    return Double.compare(o1.squareDistanceTo(p), o2.squareDistanceTo(p));
+                }
+            });
+        return res;
+    }
+
+    // Streaming radius search, returns false if the visitor stopped the search
+    public boolean withinRadius(Point3D p, double radius, PointVisitor<Point3D> visitor) {
+        if (radius < 0)
+            throw new IllegalArgumentException("");
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        boolean res = withinRadius(root, p, radius * radius, visitor, stats);
+        if (l != null)
+            l.queryDone("withinRadius", stats);
+        return res;
+    }
+
+    private boolean withinRadius(Node root, Point3D p, double r2, PointVisitor<Point3D> visitor, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (r.boundary.squareDistanceTo(p) > r2) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++) {
+                    Point3D q = r.points[i];
+                    if (q.squareDistanceTo(p) <= r2 && !visitor.visit(q))
+                        return false;
+                }
+                if (r.dirs[0] != null)
+                    for (int i = SIZE - 1; i >= 0; i--)
+                        st.push(r.dirs[i], 0, 0);
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    /*
+     * K Nearest Neighbor Search, the children of a node are visited in order
+     * of the distance from p to their boundary, and a cell is pruned when that
+     * distance is not smaller than the k-th best distance.
+     */
+    public Point3D nearest(Point3D p) {
+        NeighborHeap<Point3D> heap = new NeighborHeap<Point3D>(1);
+        return kNearest(p, 1, heap) == 0 ? null : heap.get(0);
+    }
+
+    public Point3D[] kNearest(Point3D p, int k) {
+        NeighborHeap<Point3D> heap = new NeighborHeap<Point3D>(k);
+        int num = kNearest(p, k, heap);
+        Point3D[] res = new Point3D[num];
+        for (int i = 0; i < num; i++)
+            res[i] = heap.get(i);
+        return res;
+    }
+
+    // As QuadTree.kNearest with a caller supplied heap
+    public int kNearest(Point3D p, int k, NeighborHeap<Point3D> heap) {
+        heap.reset(k);
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        kNearest(root, p, heap, stats);
+        heap.sort();
+        if (l != null)
+            l.queryDone("kNearest", stats);
+        return heap.size();
+    }
+
+    // Iterative, as QuadTree.kNearest
+    private void kNearest(Node root, Point3D p, NeighborHeap<Point3D> heap, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        double[] dist = new double[SIZE];
+        int[] order = new int[SIZE];
+        try {
+            st.push(root, 0, root.boundary.squareDistanceTo(p));
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (st.value() >= heap.worst()) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++)
+                    heap.offer(r.points[i], r.points[i].squareDistanceTo(p));
+                if (r.dirs[0] == null)
+                    continue;
+                // Insertion sort of the children by distance
+                for (int i = 0; i < SIZE; i++) {
+                    double d = r.dirs[i].boundary.squareDistanceTo(p);
+                    int j = i;
+                    for (; j > 0 && dist[j - 1] > d; j--) {
+                        dist[j] = dist[j - 1];
+                        order[j] = order[j - 1];
+                    }
+                    dist[j] = d;
+                    order[j] = i;
+                }
+                for (int i = SIZE - 1; i >= 0; i--)
+                    st.push(r.dirs[order[i]], 0, dist[i]);
+            }
+        } finally {
+            st.release();
         }
-        for (int i = 0; i < SIZE; i++)
-            queryRange(r.dirs[i], range, res);
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,18 @@
+package code;
+
+import java.util.Set;
+
+/*
+ * Common query API of the KDTree variants
+ * Implemented by KDTree, StaticKDTree and MappedKDTree (through ImplicitKDTree) and FloatKDTree.
+ * */
+public interface PointIndex {
+    HyperPoint nearestPoint(HyperPoint p);
+
+    Set<HyperPoint> rangeQuery(HyperSpace hs);
+
+    // Streaming range search, returns false if the visitor stopped the search
+    boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor);
+
+    int rangeCount(HyperSpace hs);
+}
@@ -0,0 +1,9 @@
+package code;
+
+/*
+ * Callback of streaming queries
+ * visit is called once for every point found, returning false stops the query.
+ * */
+public interface PointVisitor<T> {
+    boolean visit(T p);
+}
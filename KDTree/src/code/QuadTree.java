@@ -1,13 +1,15 @@
 package code;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 /*
  * QuadTree implementation
  * Features :
- * Search : Range Search
- * Insert : SingleNode insert
+ * Search : Range Search (streaming visitor, count only), Nearest and K Nearest NeighBor Search
+ * Insert : SingleNode insert, iterative, repeated copies of a point share a node
+ * Metrics : same query instrumentation and treeStats as KDTree
  * Refer to https://en.wikipedia.org/wiki/Quadtree
  * Author : linpc2013
  * */
@@ -19,6 +21,11 @@ class Point2D {
         this.y = y;
     }
 
+    public double squareDistanceTo(Point2D p) {
+        double dx = x - p.x, dy = y - p.y;
+        return dx * dx + dy * dy;
+    }
+
     public String toString() {
         return "(" + x + ", " + y + ")";
     }
@@ -42,6 +49,13 @@ class Rect {
         return !(r.min.x > max.x || r.min.y > max.y || r.max.x < min.x || r.max.y < min.y);
     }
 
+    // The square of Euclidean Distance from p to the closest point of the rect
+    public double squareDistanceTo(Point2D p) {
+        double dx = Math.max(0, Math.max(min.x - p.x, p.x - max.x));
+        double dy = Math.max(0, Math.max(min.y - p.y, p.y - max.y));
+        return dx * dx + dy * dy;
+    }
+
     public String toString() {
         return "min : " + min + " len: " + length;
     }
@@ -66,35 +80,59 @@ public class QuadTree {
         }
 
         public void addPoint(Point2D p) {
+            if (count == points.length)
+                points = Arrays.copyOf(points, count * 2 + 1);
             points[count++] = p;
         }
 
+        // Whether every point of the node is at the same place as p
+        boolean duplicates(Point2D p) {
+            for (int i = 0; i < count; i++)
+                if (points[i].x != p.x || points[i].y != p.y)
+                    return false;
+            return true;
+        }
+
     }
 
     Node root;
     int nodeCapacity = 4;
+    // Receives the counters of every query, null disables them
+    QueryListener listener;
 
     public QuadTree(Rect boundary, int nodeCapacity) {
         this.nodeCapacity = nodeCapacity;
         root = new Node(boundary);
     }
 
+    /*
+     * Iterative insert, p goes down to the first child containing it. A full
+     * leaf holding only copies of p grows instead of being subdivided, as no
+     * subdivision would ever separate them, and so does a node none of whose
+     * children contains p, once the halved cells are rounded off.
+     */
     public void insert(Point2D p) {
-        insert(root, p);
-    }
-
-    private boolean insert(Node r, Point2D p) {
-        if (r == null || !r.boundary.containsPoint(p))
-            return false;
-        if (r.size() < nodeCapacity) {
-            r.addPoint(p);
-            return true;
+        Node r = root;
+        if (!r.boundary.containsPoint(p))
+            return;
+        while (r.size() >= nodeCapacity) {
+            if (r.northWest == null) {
+                if (r.duplicates(p))
+                    break;
+                subdivide(r);
+            }
+            if (r.northWest.boundary.containsPoint(p))
+                r = r.northWest;
+            else if (r.northEast.boundary.containsPoint(p))
+                r = r.northEast;
+            else if (r.southWest.boundary.containsPoint(p))
+                r = r.southWest;
+            else if (r.southEast.boundary.containsPoint(p))
+                r = r.southEast;
+            else
+                break;
         }
-        if (r.northWest == null)
-            subdivide(r);
-        if (insert(r.northWest, p) || insert(r.northEast, p) || insert(r.southWest, p) || insert(r.southEast, p))
-            return true;
-        return false;
+        r.addPoint(p);
     }
 
     private void subdivide(Node p) {
@@ -109,23 +147,218 @@ public class QuadTree {
         p.southEast = new Node(new Rect(seMin, nlength));
     }
 
+    // Query instrumentation, see KDTree.setQueryListener
+    public void setQueryListener(QueryListener listener) {
+        this.listener = listener;
+    }
+
+    // Depth, balance and node occupancy of the current tree, every childless node is a leaf
+    public TreeStats treeStats() {
+        TreeStats ts = new TreeStats();
+        treeStats(root, 1, ts);
+        return ts;
+    }
+
+    private void treeStats(Node root, int depth, TreeStats ts) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, depth, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                depth = st.depth();
+                ts.node(depth, r.size());
+                if (r.northWest == null) {
+                    ts.leaf(depth, r.size());
+                    continue;
+                }
+                st.push(r.southEast, depth + 1, 0);
+                st.push(r.southWest, depth + 1, 0);
+                st.push(r.northEast, depth + 1, 0);
+                st.push(r.northWest, depth + 1, 0);
+            }
+        } finally {
+            st.release();
+        }
+    }
+
     public Set<Point2D> queryRange(Rect range) {
-        Set<Point2D> res = new HashSet<Point2D>();
-        queryRange(root, range, res);
+        final Set<Point2D> res = new HashSet<Point2D>();
+        queryRange(range, new PointVisitor<Point2D>() {
+            @Override
+            public boolean visit(Point2D p) {
+                res.add(p);
+                return true;
+            }
+        });
         return res;
     }
 
-    private void queryRange(Node r, Rect range, Set<Point2D> res) {
-        if (r == null || !r.boundary.intersects(range))
-            return;
-        Point2D[] points = r.points;
-        for (Point2D p : points)
-            if (range.containsPoint(p))
-                res.add(p);
-        queryRange(r.northWest, range, res);
-        queryRange(r.northEast, range, res);
-        queryRange(r.southWest, range, res);
-        queryRange(r.southEast, range, res);
+    // Points of range go to the visitor as they are found, reported to the listener as "queryRange"
+    public boolean queryRange(Rect range, PointVisitor<Point2D> visitor) {
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        boolean res = queryRange(root, range, visitor, stats);
+        if (l != null)
+            l.queryDone("queryRange", stats);
+        return res;
+    }
+
+    // Iterative pre-order traversal, children in the order northWest, northEast, southWest, southEast
+    private boolean queryRange(Node root, Rect range, PointVisitor<Point2D> visitor, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++) {
+                    Point2D p = r.points[i];
+                    if (range.containsPoint(p) && !visitor.visit(p))
+                        return false;
+                }
+                if (r.northWest != null) {
+                    st.push(r.southEast, 0, 0);
+                    st.push(r.southWest, 0, 0);
+                    st.push(r.northEast, 0, 0);
+                    st.push(r.northWest, 0, 0);
+                }
+            }
+            return true;
+        } finally {
+            st.release();
+        }
+    }
+
+    // Number of points in range, nothing is allocated
+    public int rangeCount(Rect range) {
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        int res = rangeCount(root, range, stats);
+        if (l != null)
+            l.queryDone("rangeCount", stats);
+        return res;
+    }
+
+    private int rangeCount(Node root, Rect range, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        try {
+            int res = 0;
+            st.push(root, 0, 0);
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (!r.boundary.intersects(range)) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++)
+                    if (range.containsPoint(r.points[i]))
+                        res++;
+                if (r.northWest != null) {
+                    st.push(r.southEast, 0, 0);
+                    st.push(r.southWest, 0, 0);
+                    st.push(r.northEast, 0, 0);
+                    st.push(r.northWest, 0, 0);
+                }
+            }
+            return res;
+        } finally {
+            st.release();
+        }
+    }
+
+    /*
+     * K Nearest Neighbor Search, the children of a node are visited in order
+     * of the distance from p to their boundary, and a cell is pruned when that
+     * distance is not smaller than the k-th best distance.
+     */
+    public Point2D nearest(Point2D p) {
+        NeighborHeap<Point2D> heap = new NeighborHeap<Point2D>(1);
+        return kNearest(p, 1, heap) == 0 ? null : heap.get(0);
+    }
+
+    public Point2D[] kNearest(Point2D p, int k) {
+        NeighborHeap<Point2D> heap = new NeighborHeap<Point2D>(k);
+        int num = kNearest(p, k, heap);
+        Point2D[] res = new Point2D[num];
+        for (int i = 0; i < num; i++)
+            res[i] = heap.get(i);
+        return res;
+    }
+
+    // Heap reused by the caller, reset to k and sorted nearest first; returns the number of points found
+    public int kNearest(Point2D p, int k, NeighborHeap<Point2D> heap) {
+        heap.reset(k);
+        QueryListener l = listener;
+        QueryStats stats = l == null ? null : new QueryStats();
+        kNearest(root, p, heap, stats);
+        heap.sort();
+        if (l != null)
+            l.queryDone("kNearest", stats);
+        return heap.size();
+    }
+
+    /*
+     * Iterative, the children of a node are stacked farthest first with their
+     * distance, which is compared to the k-th best distance when they are
+     * popped. The distances are sorted, so once a child is pruned its farther
+     * siblings, popped right after it, are pruned too.
+     */
+    private void kNearest(Node root, Point2D p, NeighborHeap<Point2D> heap, QueryStats stats) {
+        TraversalStack st = TraversalStack.acquire();
+        Node[] dirs = new Node[4];
+        double[] dist = new double[4];
+        try {
+            st.push(root, 0, root.boundary.squareDistanceTo(p));
+            while (!st.isEmpty()) {
+                Node r = (Node) st.pop();
+                if (st.value() >= heap.worst()) {
+                    if (stats != null)
+                        stats.prunes++;
+                    continue;
+                }
+                if (stats != null) {
+                    stats.visits++;
+                    stats.points += r.size();
+                }
+                for (int i = 0; i < r.size(); i++)
+                    heap.offer(r.points[i], r.points[i].squareDistanceTo(p));
+                if (r.northWest == null)
+                    continue;
+                // Insertion sort of the children by distance
+                dirs[0] = r.northWest;
+                dirs[1] = r.northEast;
+                dirs[2] = r.southWest;
+                dirs[3] = r.southEast;
+                for (int i = 0; i < 4; i++) {
+                    Node c = dirs[i];
+                    double d = c.boundary.squareDistanceTo(p);
+                    int j = i;
+                    for (; j > 0 && dist[j - 1] > d; j--) {
+                        dist[j] = dist[j - 1];
+                        dirs[j] = dirs[j - 1];
+                    }
+                    dist[j] = d;
+                    dirs[j] = c;
+                }
+                for (int i = 3; i >= 0; i--)
+                    st.push(dirs[i], 0, dist[i]);
+            }
+        } finally {
+            st.release();
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,277 @@
+package code;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Result cache in front of a KDTree
+ * Features :
+ * Caches the answers of nearestPoint and rangeQuery in a bounded LRU map
+ * Invalidation : the whole cache is dropped as soon as KDTree.version()
+ * changes, i.e. after any insert, bulk build or delete
+ * Statistics : hits, misses and hit ratio, to size the cache
+ *
+ * Range boxes are keyed on their bounds snapped outward to a grid of step
+ * quantum, so close repeats of a hot box share one entry : the cached points
+ * are the ones of the grown box, and they are filtered by the exact box of
+ * each caller, so range answers are always exact. nearestPoint is keyed on
+ * the exact point, approximateNearestPoint on the point snapped to the grid,
+ * it answers the nearest point of the snapped point. With quantum 0 every key
+ * is exact and answers are the same as the tree's.
+ * The map is split in STRIPES parts, each an LRU with its own lock, picked by
+ * the hash of the key. Queries on different keys rarely wait for each other,
+ * but the eviction order is only LRU within a part.
+ * The cache is thread-safe as long as the tree is not modified while queried.
+ * */
+public class QueryCache implements PointIndex {
+    // Most parts of the map, each with its own lock
+    static final int STRIPES = 16;
+
+    final KDTree tree;
+    final int capacity;
+    final double quantum;
+    final Stripe[] stripes;
+
+    // Snapped coordinates of a query, a nearest query has K of them, a range query 2K
+    static final class Key {
+        final double[] coords;
+        final int hash;
+
+        Key(double[] coords) {
+            this.coords = coords;
+            hash = Arrays.hashCode(coords);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(coords, ((Key) o).coords);
+        }
+    }
+
+    // LRU part of the cache, guarded by its own monitor, with the tree version of its entries
+    static final class Stripe extends LinkedHashMap<Key, Object> {
+        private static final long serialVersionUID = 1L;
+        final int capacity;
+        long version, hits, misses;
+
+        Stripe(int capacity, long version) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.version = version;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    public QueryCache(KDTree tree, int capacity, double quantum) {
+        if (capacity < 1 || !(quantum >= 0))
+            throw new IllegalArgumentException("");
+        this.tree = tree;
+        this.capacity = capacity;
+        this.quantum = quantum;
+        // capacity is shared out between the stripes, which hold one entry at least
+        int n = Math.min(STRIPES, capacity);
+        stripes = new Stripe[n];
+        long v = tree.version();
+        for (int i = 0; i < n; i++)
+            stripes[i] = new Stripe(capacity / n + (i < capacity % n ? 1 : 0), v);
+    }
+
+    Stripe stripe(Key key) {
+        int h = key.hash ^ key.hash >>> 16;
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    double snap(double c) {
+        return quantum == 0 ? c : Math.rint(c / quantum) * quantum;
+    }
+
+    // Grid line at or below c, and at or above c, stepped outward if the product rounded past c
+    double floor(double c) {
+        if (quantum == 0)
+            return c;
+        double g = Math.floor(c / quantum) * quantum;
+        while (g > c)
+            g = Math.nextDown(g);
+        return g;
+    }
+
+    double ceil(double c) {
+        if (quantum == 0)
+            return c;
+        double g = Math.ceil(c / quantum) * quantum;
+        while (g < c)
+            g = Math.nextUp(g);
+        return g;
+    }
+
+    HyperPoint snap(HyperPoint p) {
+        if (quantum == 0)
+            return p;
+        double[] crds = new double[p.K];
+        for (int k = 0; k < p.K; k++)
+            crds[k] = snap(p.coords[k]);
+        return new HyperPoint(crds);
+    }
+
+    // Cached answer of key, null on a miss. Drops the stripe if the tree has changed.
+    private Object get(Key key, long v) {
+        Stripe s = stripe(key);
+        synchronized (s) {
+            if (v != s.version) {
+                s.clear();
+                s.version = v;
+            }
+            Object res = s.get(key);
+            if (res != null)
+                s.hits++;
+            else
+                s.misses++;
+            return res;
+        }
+    }
+
+    // Keep an answer computed on version v, unless the tree has changed meanwhile
+    private void put(Key key, Object res, long v) {
+        Stripe s = stripe(key);
+        synchronized (s) {
+            if (v == s.version && v == tree.version())
+                s.put(key, res);
+        }
+    }
+
+    // Nearest point of q, cached under the coordinates of q
+    private HyperPoint nearest(HyperPoint q) {
+        Key key = new Key(q.coords.clone());
+        long v = tree.version();
+        HyperPoint res = (HyperPoint) get(key, v);
+        if (res == null) {
+            res = tree.nearestPoint(q);
+            // an empty tree is not cached
+            if (res != null)
+                put(key, res, v);
+        }
+        return res;
+    }
+
+    @Override
+    public HyperPoint nearestPoint(HyperPoint p) {
+        return nearest(p);
+    }
+
+    /*
+     * Nearest point of p snapped to the grid, so all the points of a grid
+     * cell share one entry. It may not be the nearest point of p, its
+     * distance to p is at most the one of the true nearest point plus
+     * quantum * sqrt(K). Same as nearestPoint with quantum 0.
+     */
+    public HyperPoint approximateNearestPoint(HyperPoint p) {
+        return nearest(snap(p));
+    }
+
+    // Cached points of hs snapped outward, a superset of the points in hs
+    @SuppressWarnings("unchecked")
+    private Set<HyperPoint> cached(HyperSpace hs) {
+        int K = hs.min.K;
+        double[] crds = new double[2 * K];
+        for (int k = 0; k < K; k++) {
+            crds[k] = floor(hs.min.coords[k]);
+            crds[K + k] = ceil(hs.max.coords[k]);
+        }
+        Key key = new Key(crds);
+        long v = tree.version();
+        Set<HyperPoint> res = (Set<HyperPoint>) get(key, v);
+        if (res == null) {
+            HyperSpace q = hs;
+            if (quantum != 0)
+                q = new HyperSpace(new HyperPoint(Arrays.copyOfRange(crds, 0, K)), new HyperPoint(Arrays.copyOfRange(crds, K, 2 * K)));
+            res = Collections.unmodifiableSet(tree.rangeQuery(q));
+            put(key, res, v);
+        }
+        return res;
+    }
+
+    // A new set for every call, the cached one is never handed out
+    @Override
+    public Set<HyperPoint> rangeQuery(HyperSpace hs) {
+        Set<HyperPoint> res = cached(hs);
+        if (quantum == 0)
+            return new HashSet<HyperPoint>(res);
+        Set<HyperPoint> in = new HashSet<HyperPoint>();
+        for (HyperPoint p : res)
+            if (hs.contains(p))
+                in.add(p);
+        return in;
+    }
+
+    // Streaming and counting queries go through the cached sets
+    @Override
+    public boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor) {
+        for (HyperPoint p : cached(hs))
+            if (hs.contains(p) && !visitor.visit(p))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int rangeCount(HyperSpace hs) {
+        if (quantum == 0)
+            return cached(hs).size();
+        int n = 0;
+        for (HyperPoint p : cached(hs))
+            if (hs.contains(p))
+                n++;
+        return n;
+    }
+
+    public void clear() {
+        for (Stripe s : stripes)
+            synchronized (s) {
+                s.clear();
+            }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                n += s.size();
+            }
+        return n;
+    }
+
+    public long hits() {
+        long n = 0;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                n += s.hits;
+            }
+        return n;
+    }
+
+    public long misses() {
+        long n = 0;
+        for (Stripe s : stripes)
+            synchronized (s) {
+                n += s.misses;
+            }
+        return n;
+    }
+
+    public double hitRatio() {
+        long h = hits(), total = h + misses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
@@ -0,0 +1,12 @@
+package code;
+
+/*
+ * Receives the counters of every query of a tree it is set on, see
+ * KDTree.setQueryListener, QuadTree.setQueryListener, OctTree.setQueryListener.
+ * query is the name of the public method, e.g. "nearestPoint" or "rangeQuery".
+ * It is called on the querying thread, so it must be thread-safe if the tree
+ * is queried concurrently.
+ * */
+public interface QueryListener {
+    void queryDone(String query, QueryStats stats);
+}
@@ -0,0 +1,70 @@
+package code;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Thread-safe QueryListener summing the counters of all queries
+ * It can be shared by several trees, and exported through JMX by register,
+ * under code:type=QueryMetrics,name=<name>.
+ * */
+public class QueryMetrics implements QueryListener, QueryMetricsMBean {
+    final LongAdder queries = new LongAdder(), visits = new LongAdder(), prunes = new LongAdder(), points = new LongAdder();
+
+    @Override
+    public void queryDone(String query, QueryStats stats) {
+        queries.increment();
+        visits.add(stats.visits);
+        prunes.add(stats.prunes);
+        points.add(stats.points);
+    }
+
+    public ObjectName register(String name) throws JMException {
+        ObjectName on = new ObjectName("code:type=QueryMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        return on;
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getVisits() {
+        return visits.sum();
+    }
+
+    @Override
+    public long getPrunes() {
+        return prunes.sum();
+    }
+
+    @Override
+    public long getPoints() {
+        return points.sum();
+    }
+
+    @Override
+    public double getPruneRatio() {
+        long v = visits.sum();
+        return v == 0 ? 0 : (double) prunes.sum() / v;
+    }
+
+    @Override
+    public double getVisitsPerQuery() {
+        long q = queries.sum();
+        return q == 0 ? 0 : (double) visits.sum() / q;
+    }
+
+    @Override
+    public void reset() {
+        queries.reset();
+        visits.reset();
+        prunes.reset();
+        points.reset();
+    }
+}
@@ -0,0 +1,20 @@
+package code;
+
+/*
+ * JMX view of QueryMetrics
+ * */
+public interface QueryMetricsMBean {
+    long getQueries();
+
+    long getVisits();
+
+    long getPrunes();
+
+    long getPoints();
+
+    double getPruneRatio();
+
+    double getVisitsPerQuery();
+
+    void reset();
+}
@@ -0,0 +1,34 @@
+package code;
+
+/*
+ * Counters of one query
+ * visits : nodes whose points were examined
+ * prunes : subtrees skipped by a distance or intersection test
+ * points : points compared to the query
+ * A QueryStats is only created while a QueryListener is set, so queries on
+ * a tree without listener pay a null check per node and nothing else.
+ * */
+public class QueryStats {
+    long visits, prunes, points;
+
+    public long visits() {
+        return visits;
+    }
+
+    public long prunes() {
+        return prunes;
+    }
+
+    public long points() {
+        return points;
+    }
+
+    // Pruned subtrees per visited node
+    public double pruneRatio() {
+        return visits == 0 ? 0 : (double) prunes / visits;
+    }
+
+    public String toString() {
+        return "visits : " + visits + " prunes : " + prunes + " points : " + points;
+    }
+}
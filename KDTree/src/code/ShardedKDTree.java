@@ -0,0 +1,401 @@
+package code;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Sharded KDTree implementation
+ * Features :
+ * Shards : space is cut by the top levels of a median build into P cells, each with its own KDTree
+ * Insert : SingleNode insert, routed to one shard and locking only that shard
+ * Rebuild : any shard is rebuilt by median finding on its own, reads go on meanwhile
+ * Search : Range Search, Nearest and K Nearest NeighBor Search, scattered over the shards on a ForkJoinPool
+ *
+ * The splitting planes are kept in heap order, node i has children 2i+1 and
+ * 2i+2 and splits dimension depth % K, and P is rounded up to a power of two.
+ * As in KDTree, points smaller than the plane go left and the median itself
+ * goes right. A query only reaches the shards whose cell intersects the range
+ * or the current nearest neighbor ball; the nearest searches first ask the
+ * shard of p and use its answer to prune the others. Every shard has a read
+ * write lock, so a writer stalls the readers of its own shard only. A
+ * rebuild logs the inserts made while it builds, and holds the write lock
+ * just to replay them into the new tree and swap it in.
+ * */
+public class ShardedKDTree implements PointIndex {
+    static class Shard {
+        final HyperSpace cell;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        // guarded by lock
+        KDTree tree;
+        int size;
+        // points inserted while a rebuild runs, null otherwise
+        ArrayList<HyperPoint> pending;
+
+        Shard(HyperSpace cell) {
+            this.cell = cell;
+        }
+    }
+
+    final int K;
+    final HyperPoint min, max;
+    // number of splitting levels, there are 1 << levels shards
+    final int levels;
+    // splitting planes of the top levels in heap order
+    final double[] pivots;
+    final Shard[] shards;
+    final ForkJoinPool pool;
+
+    public ShardedKDTree(int K, HyperPoint min, HyperPoint max, int shards, HyperPoint[] points) {
+        this(K, min, max, shards, points, ForkJoinPool.commonPool());
+    }
+
+    /*
+     * Build P >= shards shards from points, the array is reordered as by
+     * KDTree.insertByMedianFinding.
+     */
+    public ShardedKDTree(int K, HyperPoint min, HyperPoint max, int shards, HyperPoint[] points, ForkJoinPool pool) {
+        if (shards < 1 || min.K != K || max.K != K)
+            throw new IllegalArgumentException("");
+        this.K = K;
+        this.min = min;
+        this.max = max;
+        this.pool = pool;
+        levels = 32 - Integer.numberOfLeadingZeros(shards - 1);
+        this.shards = new Shard[1 << levels];
+        pivots = new double[(1 << levels) - 1];
+        int[] from = new int[1 << levels], to = new int[1 << levels];
+        split(points, 0, 0, 0, points.length - 1, new HyperPoint(min), new HyperPoint(max), from, to);
+        final HyperPoint[] pts = points;
+        final int[] beg = from, end = to;
+        scatter(all(), new ShardJob() {
+            @Override
+            public void run(int i) {
+                Shard s = ShardedKDTree.this.shards[i];
+                s.tree = build(s.cell, Arrays.copyOfRange(pts, beg[i], end[i] + 1));
+                s.size = end[i] - beg[i] + 1;
+            }
+        });
+    }
+
+    // Median split of points[i..j] under heap node, the shards get their cell and range
+    private void split(HyperPoint[] points, int node, int depth, int i, int j, HyperPoint hmin, HyperPoint hmax, int[] from, int[] to) {
+        if (depth == levels) {
+            int s = node - pivots.length;
+            shards[s] = new Shard(new HyperSpace(hmin, hmax));
+            from[s] = i;
+            to[s] = j;
+            return;
+        }
+        int k = depth % K;
+        int t = KDTree.findMedian(points, k, i, j);
+        // an empty range is cut in the middle of its cell
+        double pivot = t < 0 ? (hmin.coords[k] + hmax.coords[k]) / 2 : points[t].coords[k];
+        if (t < 0)
+            t = i;
+        pivots[node] = pivot;
+        HyperPoint hmid1 = new HyperPoint(hmax);
+        hmid1.coords[k] = pivot;
+        split(points, 2 * node + 1, depth + 1, i, t - 1, hmin, hmid1, from, to);
+        HyperPoint hmid2 = new HyperPoint(hmin);
+        hmid2.coords[k] = pivot;
+        split(points, 2 * node + 2, depth + 1, t, j, hmid2, hmax, from, to);
+    }
+
+    private KDTree build(HyperSpace cell, HyperPoint[] points) {
+        KDTree tree = new KDTree(K, cell.min, cell.max);
+        tree.insertByMedianFinding(points);
+        return tree;
+    }
+
+    // Index of the shard whose cell takes p
+    int shardOf(HyperPoint p) {
+        int node = 0;
+        for (int depth = 0; depth < levels; depth++)
+            node = p.coords[depth % K] < pivots[node] ? 2 * node + 1 : 2 * node + 2;
+        return node - pivots.length;
+    }
+
+    public int shards() {
+        return shards.length;
+    }
+
+    public int size() {
+        int res = 0;
+        for (Shard s : shards) {
+            s.lock.readLock().lock();
+            try {
+                res += s.size;
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return res;
+    }
+
+    public void insert(HyperPoint p) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        Shard s = shards[shardOf(p)];
+        s.lock.writeLock().lock();
+        try {
+            s.tree.insert(p);
+            s.size++;
+            if (s.pending != null)
+                s.pending.add(p);
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Rebuild shard i by median finding. Its points are copied under the read
+     * lock and the new tree is built without any lock, so the shard stays
+     * readable and writable. The points inserted meanwhile are logged and
+     * inserted into the new tree under the write lock before it replaces the
+     * old one, so a rebuild always completes, whatever the write rate.
+     */
+    public void rebuild(int i) {
+        Shard s = shards[i];
+        // one rebuild of a shard at a time, as they share its log
+        synchronized (s) {
+            HyperPoint[] points;
+            s.lock.readLock().lock();
+            try {
+                points = new HyperPoint[s.size];
+                final HyperPoint[] res = points;
+                final int[] n = { 0 };
+                s.tree.rangeQuery(everywhere(), new PointVisitor<HyperPoint>() {
+                    @Override
+                    public boolean visit(HyperPoint p) {
+                        res[n[0]++] = p;
+                        return true;
+                    }
+                });
+                // writers are excluded by the read lock, the next one sees the log
+                s.pending = new ArrayList<HyperPoint>();
+            } finally {
+                s.lock.readLock().unlock();
+            }
+            KDTree tree = null;
+            try {
+                tree = build(s.cell, points);
+            } finally {
+                s.lock.writeLock().lock();
+                try {
+                    if (tree != null) {
+                        for (HyperPoint p : s.pending)
+                            tree.insert(p);
+                        s.tree = tree;
+                    }
+                    s.pending = null;
+                } finally {
+                    s.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    // Rebuild every shard in parallel
+    public void rebuild() {
+        scatter(all(), new ShardJob() {
+            @Override
+            public void run(int i) {
+                rebuild(i);
+            }
+        });
+    }
+
+    private HyperSpace everywhere() {
+        double[] lo = new double[K], hi = new double[K];
+        Arrays.fill(lo, Double.NEGATIVE_INFINITY);
+        Arrays.fill(hi, Double.POSITIVE_INFINITY);
+        return new HyperSpace(new HyperPoint(lo), new HyperPoint(hi));
+    }
+
+    @Override
+    public HyperPoint nearestPoint(HyperPoint p) {
+        NeighborHeap<HyperPoint> heap = new NeighborHeap<HyperPoint>(1);
+        return kNearest(p, 1, heap) == 0 ? null : heap.get(0);
+    }
+
+    public HyperPoint[] kNearest(HyperPoint p, int k) {
+        NeighborHeap<HyperPoint> heap = new NeighborHeap<HyperPoint>(k);
+        int num = kNearest(p, k, heap);
+        HyperPoint[] res = new HyperPoint[num];
+        for (int i = 0; i < num; i++)
+            res[i] = heap.get(i);
+        return res;
+    }
+
+    /*
+     * Same contract as KDTree.kNearest with a heap. The shard of p is searched first, then
+     * the other shards closer than the k-th best distance, in parallel, each
+     * search pruned by that distance.
+     */
+    public int kNearest(final HyperPoint p, final int k, NeighborHeap<HyperPoint> heap) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        heap.reset(k);
+        int home = shardOf(p);
+        kNearest(home, p, heap);
+        final double bound = heap.worst();
+        int[] ids = new int[shards.length];
+        int n = 0;
+        for (int i = 0; i < shards.length; i++)
+            if (i != home && shards[i].cell.squareDistanceTo(p) < bound)
+                ids[n++] = i;
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final NeighborHeap<HyperPoint>[] found = new NeighborHeap[shards.length];
+        scatter(Arrays.copyOf(ids, n), new ShardJob() {
+            @Override
+            public void run(int i) {
+                found[i] = new NeighborHeap<HyperPoint>(k);
+                found[i].reset(k, bound);
+                kNearest(i, p, found[i]);
+            }
+        });
+        // merge
+        for (int t = 0; t < n; t++) {
+            NeighborHeap<HyperPoint> h = found[ids[t]];
+            for (int j = 0; j < h.size(); j++)
+                heap.offer(h.get(j), h.distance(j));
+        }
+        heap.sort();
+        return heap.size();
+    }
+
+    // Offer the points of shard i to heap, which is neither reset nor sorted
+    private void kNearest(int i, HyperPoint p, NeighborHeap<HyperPoint> heap) {
+        Shard s = shards[i];
+        s.lock.readLock().lock();
+        try {
+            s.tree.kNearestMerge(p, heap);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<HyperPoint> rangeQuery(final HyperSpace hs) {
+        int[] ids = intersecting(hs);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final Set<HyperPoint>[] found = new Set[shards.length];
+        scatter(ids, new ShardJob() {
+            @Override
+            public void run(int i) {
+                Shard s = shards[i];
+                s.lock.readLock().lock();
+                try {
+                    found[i] = s.tree.rangeQuery(hs);
+                } finally {
+                    s.lock.readLock().unlock();
+                }
+            }
+        });
+        Set<HyperPoint> res = new HashSet<HyperPoint>();
+        for (int i : ids)
+            res.addAll(found[i]);
+        return res;
+    }
+
+    /*
+     * Points of hs are passed to the visitor shard by shard, false if it
+     * stopped the search. Each shard is visited under its read lock, so the
+     * visitor must not insert into this tree.
+     */
+    @Override
+    public boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor) {
+        for (int i : intersecting(hs)) {
+            Shard s = shards[i];
+            s.lock.readLock().lock();
+            try {
+                if (!s.tree.rangeQuery(hs, visitor))
+                    return false;
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int rangeCount(final HyperSpace hs) {
+        int[] ids = intersecting(hs);
+        final int[] counts = new int[shards.length];
+        scatter(ids, new ShardJob() {
+            @Override
+            public void run(int i) {
+                Shard s = shards[i];
+                s.lock.readLock().lock();
+                try {
+                    counts[i] = s.tree.rangeCount(hs);
+                } finally {
+                    s.lock.readLock().unlock();
+                }
+            }
+        });
+        int res = 0;
+        for (int c : counts)
+            res += c;
+        return res;
+    }
+
+    // Shards whose cell intersects hs
+    private int[] intersecting(HyperSpace hs) {
+        int[] ids = new int[shards.length];
+        int n = 0;
+        for (int i = 0; i < shards.length; i++)
+            if (shards[i].cell.intersects(hs))
+                ids[n++] = i;
+        return Arrays.copyOf(ids, n);
+    }
+
+    private int[] all() {
+        int[] ids = new int[shards.length];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = i;
+        return ids;
+    }
+
+    // Work done on one shard by scatter
+    interface ShardJob {
+        void run(int i);
+    }
+
+    // Run job on the shards ids, a single shard runs in the calling thread
+    private void scatter(int[] ids, ShardJob job) {
+        if (ids.length == 1)
+            job.run(ids[0]);
+        else if (ids.length > 1)
+            pool.invoke(new ScatterTask(ids, job, 0, ids.length));
+    }
+
+    static class ScatterTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        int[] ids;
+        ShardJob job;
+        int beg, end;
+
+        ScatterTask(int[] ids, ShardJob job, int beg, int end) {
+            this.ids = ids;
+            this.job = job;
+            this.beg = beg;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - beg == 1) {
+                job.run(ids[beg]);
+                return;
+            }
+            int mid = (beg + end) >>> 1;
+            invokeAll(new ScatterTask(ids, job, beg, mid), new ScatterTask(ids, job, mid, end));
+        }
+    }
+}
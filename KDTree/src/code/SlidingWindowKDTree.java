@@ -0,0 +1,153 @@
+package code;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Sliding window KDTree implementation
+ * Features :
+ * Insert : timestamped points from an endless stream
+ * Expiry : only the points of the last window time units are kept
+ * Search : Range Search, Nearest NeighBor Search, merged over the partitions
+ *
+ * Time is cut in partitions of span time units, each with its own KDTree. The
+ * newest partition takes single inserts, and it is rebuilt by median finding
+ * once time has moved past it. A partition is dropped as a whole when its
+ * last instant is out of the window, so a point stays searchable for at
+ * least window and less than window + span time units. Times are in any unit
+ * the caller chooses, e.g. milliseconds, and expiry follows the largest time
+ * seen by insert or expire.
+ * */
+public class SlidingWindowKDTree implements PointIndex {
+    static class Partition {
+        // covers the times [index * span, (index + 1) * span)
+        long index;
+        KDTree tree;
+        // points of the partition, kept until it is rebuilt
+        ArrayList<HyperPoint> points = new ArrayList<HyperPoint>();
+        int size;
+    }
+
+    int K;
+    HyperPoint min, max;
+    long window, span;
+    // oldest partition first
+    ArrayList<Partition> partitions = new ArrayList<Partition>();
+    long now = Long.MIN_VALUE;
+    int size;
+
+    public SlidingWindowKDTree(int K, HyperPoint min, HyperPoint max, long window, long span) {
+        if (window <= 0 || span <= 0 || span > window)
+            throw new IllegalArgumentException("");
+        this.K = K;
+        this.min = min;
+        this.max = max;
+        this.window = window;
+        this.span = span;
+    }
+
+    // Number of points in the live partitions
+    public int size() {
+        return size;
+    }
+
+    /*
+     * Insert p observed at time. A point older than the window is ignored and
+     * false is returned.
+     */
+    public boolean insert(HyperPoint p, long time) {
+        if (p.K != K)
+            throw new IllegalArgumentException("");
+        expire(time);
+        long index = Math.floorDiv(time, span);
+        if (expired(index))
+            return false;
+        // partitions are sorted by index, late points go to an older one
+        int i = partitions.size();
+        while (i > 0 && partitions.get(i - 1).index > index)
+            i--;
+        Partition part;
+        if (i > 0 && partitions.get(i - 1).index == index)
+            part = partitions.get(i - 1);
+        else {
+            part = new Partition();
+            part.index = index;
+            part.tree = new KDTree(K, min, max);
+            partitions.add(i, part);
+        }
+        part.tree.insert(p);
+        if (part.points != null)
+            part.points.add(p);
+        part.size++;
+        size++;
+        // older partitions are complete, rebuild them balanced
+        for (int j = 0; j < partitions.size() - 1; j++)
+            if (partitions.get(j).points != null)
+                seal(partitions.get(j));
+        return true;
+    }
+
+    private void seal(Partition part) {
+        part.tree = new KDTree(K, min, max);
+        part.tree.insertByMedianFinding(part.points.toArray(new HyperPoint[part.points.size()]));
+        part.points = null;
+    }
+
+    private boolean expired(long index) {
+        // last instant of partition index is (index + 1) * span - 1
+        return now != Long.MIN_VALUE && (index + 1) * span - 1 <= now - window;
+    }
+
+    // Move time forward to now and drop the partitions out of the window
+    public void expire(long now) {
+        if (now <= this.now)
+            return;
+        this.now = now;
+        int i = 0;
+        while (i < partitions.size() && expired(partitions.get(i).index))
+            size -= partitions.get(i++).size;
+        partitions.subList(0, i).clear();
+    }
+
+    @Override
+    public HyperPoint nearestPoint(HyperPoint p) {
+        HyperPoint nmin = null;
+        // each partition is searched with the best point so far as its bound
+        for (Partition part : partitions) {
+            HyperPoint q = part.tree.nearestPoint(p, nmin);
+            if (q != null)
+                nmin = q;
+        }
+        return nmin;
+    }
+
+    @Override
+    public Set<HyperPoint> rangeQuery(HyperSpace hs) {
+        final Set<HyperPoint> res = new HashSet<HyperPoint>();
+        rangeQuery(hs, new PointVisitor<HyperPoint>() {
+            @Override
+            public boolean visit(HyperPoint p) {
+                res.add(p);
+                return true;
+            }
+        });
+        return res;
+    }
+
+    @Override
+    public boolean rangeQuery(HyperSpace hs, PointVisitor<HyperPoint> visitor) {
+        for (Partition part : partitions)
+            if (!part.tree.rangeQuery(hs, visitor))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int rangeCount(HyperSpace hs) {
+        int res = 0;
+        for (Partition part : partitions)
+            res += part.tree.rangeCount(hs);
+        return res;
+    }
+}
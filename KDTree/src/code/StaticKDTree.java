@@ -0,0 +1,57 @@
+package code;
+
+/*
+ * Static KDTree implementation
+ * Features :
+ * Flat layout : all coordinates are kept in one contiguous double[], no Node/HyperSpace objects
+ * Build : same median finding split as KDTree.insertByMedianFinding
+ * Search : Range Search, Nearest NeighBor Search (same results as KDTree), see ImplicitKDTree
+ *
+ * After the median build, the points are stored in the implicit median
+ * layout of ImplicitKDTree, which runs the searches.
+ * */
+public class StaticKDTree extends ImplicitKDTree {
+    // coordinates of point i are coords[i * K] ... coords[i * K + K - 1]
+    double[] coords;
+
+    public StaticKDTree(int K, HyperPoint min, HyperPoint max) {
+        super(K, min, max);
+        coords = new double[0];
+    }
+
+    /*
+     * Build the tree from a points set. The input array is not modified, the
+     * points are reordered on a copy by the same median finding algorithm used
+     * by KDTree, and then copied into the flat coordinates array.
+     */
+    public void insertByMedianFinding(HyperPoint[] points) {
+        // checked before the build, which reads K coordinates of every point
+        for (HyperPoint p : points)
+            if (p.K != K)
+                throw new IllegalArgumentException("");
+        HyperPoint[] ps = points.clone();
+        n = ps.length;
+        build(ps, 0, 0, n - 1);
+        coords = new double[n * K];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(ps[i].coords, 0, coords, i * K, K);
+    }
+
+    private void build(HyperPoint[] points, int depth, int i, int j) {
+        if (i >= j)
+            return;
+        int t = KDTree.findMedian(points, depth % K, i, j);
+        build(points, depth + 1, i, t - 1);
+        build(points, depth + 1, t + 1, j);
+    }
+
+    @Override
+    double coord(int c) {
+        return coords[c];
+    }
+
+    @Override
+    double squareDistance(int i, HyperPoint p) {
+        return DistanceKernels.squareDistance(coords, i * K, p.coords, 0, K);
+    }
+}
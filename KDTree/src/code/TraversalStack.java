@@ -0,0 +1,71 @@
+package code;
+
+import java.util.Arrays;
+
+/*
+ * Explicit stack of the iterative tree traversals
+ * Every entry is a node with a depth and a double, e.g. the square distance
+ * of the node, checked again when the entry is popped. One stack per thread
+ * is reused by all the queries, a query started from a visitor while the
+ * thread's stack is busy gets a fresh one.
+ * */
+final class TraversalStack {
+    private static final ThreadLocal<TraversalStack> LOCAL = new ThreadLocal<TraversalStack>() {
+        @Override
+        protected TraversalStack initialValue() {
+            return new TraversalStack();
+        }
+    };
+
+    Object[] nodes = new Object[64];
+    int[] depths = new int[64];
+    double[] values = new double[64];
+    int size;
+    boolean busy;
+
+    static TraversalStack acquire() {
+        TraversalStack st = LOCAL.get();
+        if (st.busy)
+            st = new TraversalStack();
+        st.busy = true;
+        return st;
+    }
+
+    // Empty the stack and give it back to the thread
+    void release() {
+        while (size > 0)
+            nodes[--size] = null;
+        busy = false;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void push(Object node, int depth, double value) {
+        if (size == nodes.length) {
+            int n = size * 2;
+            nodes = Arrays.copyOf(nodes, n);
+            depths = Arrays.copyOf(depths, n);
+            values = Arrays.copyOf(values, n);
+        }
+        nodes[size] = node;
+        depths[size] = depth;
+        values[size++] = value;
+    }
+
+    // Pop the top entry, its depth and value are then read by depth() and value()
+    Object pop() {
+        Object node = nodes[--size];
+        nodes[size] = null;
+        return node;
+    }
+
+    int depth() {
+        return depths[size];
+    }
+
+    double value() {
+        return values[size];
+    }
+}
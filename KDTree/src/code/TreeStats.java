@@ -0,0 +1,66 @@
+package code;
+
+import java.util.Arrays;
+
+/*
+ * Shape of a tree, computed by a full traversal
+ * depth : number of levels, 0 for an empty tree
+ * balance : depth divided by the average leaf depth, 1 when every leaf is
+ * on the last level, it grows as single inserts skew the tree
+ * occupancy : occupancy[c] is the number of leaves holding c points
+ * */
+public class TreeStats {
+    int nodes, leaves, points, depth;
+    long leafDepths;
+    int[] occupancy = new int[1];
+
+    void node(int d, int count) {
+        nodes++;
+        points += count;
+        depth = Math.max(depth, d);
+    }
+
+    void leaf(int d, int count) {
+        leaves++;
+        leafDepths += d;
+        if (count >= occupancy.length)
+            occupancy = Arrays.copyOf(occupancy, Math.max(count + 1, occupancy.length * 2));
+        occupancy[count]++;
+    }
+
+    public int nodes() {
+        return nodes;
+    }
+
+    public int leaves() {
+        return leaves;
+    }
+
+    public int points() {
+        return points;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public double averageLeafDepth() {
+        return leaves == 0 ? 0 : (double) leafDepths / leaves;
+    }
+
+    public double balance() {
+        return leaves == 0 ? 1 : depth / averageLeafDepth();
+    }
+
+    public int[] occupancy() {
+        int n = occupancy.length;
+        while (n > 1 && occupancy[n - 1] == 0)
+            n--;
+        return Arrays.copyOf(occupancy, n);
+    }
+
+    public String toString() {
+        return "nodes : " + nodes + " leaves : " + leaves + " points : " + points + " depth : " + depth + " balance : " + balance() + " occupancy : "
+                + Arrays.toString(occupancy());
+    }
+}
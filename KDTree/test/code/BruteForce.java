@@ -0,0 +1,93 @@
+package code;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/*
+ * Reference answers of the tests, computed by a linear scan of the points
+ * Coordinates are drawn on a coarse grid of [0, 1] so that ties and
+ * duplicate points are common, they are the cases trees get wrong.
+ * */
+final class BruteForce {
+    private BruteForce() {
+    }
+
+    static HyperPoint unit(int K, double v) {
+        double[] crds = new double[K];
+        Arrays.fill(crds, v);
+        return new HyperPoint(crds);
+    }
+
+    static HyperPoint randomPoint(Random r, int K, int grid) {
+        double[] crds = new double[K];
+        for (int k = 0; k < K; k++)
+            crds[k] = (double) r.nextInt(grid + 1) / grid;
+        return new HyperPoint(crds);
+    }
+
+    static HyperPoint[] randomPoints(Random r, int n, int K, int grid) {
+        HyperPoint[] res = new HyperPoint[n];
+        for (int i = 0; i < n; i++)
+            res[i] = randomPoint(r, K, grid);
+        return res;
+    }
+
+    // Box of random corners, partly outside [0, 1] at times
+    static HyperSpace randomBox(Random r, int K) {
+        double[] lo = new double[K], hi = new double[K];
+        for (int k = 0; k < K; k++) {
+            lo[k] = r.nextDouble() * 1.2 - 0.1;
+            hi[k] = lo[k] + r.nextDouble() * 0.5;
+        }
+        return new HyperSpace(new HyperPoint(lo), new HyperPoint(hi));
+    }
+
+    // Square distance to the nearest point, infinity if there is none
+    static double nearest(Collection<HyperPoint> points, HyperPoint p) {
+        double res = Double.POSITIVE_INFINITY;
+        for (HyperPoint q : points)
+            res = Math.min(res, q.squareDistanceTo(p));
+        return res;
+    }
+
+    // Sorted square distances of the k nearest points
+    static double[] kNearest(Collection<HyperPoint> points, HyperPoint p, int k) {
+        double[] d = new double[points.size()];
+        int i = 0;
+        for (HyperPoint q : points)
+            d[i++] = q.squareDistanceTo(p);
+        Arrays.sort(d);
+        return Arrays.copyOf(d, Math.min(k, d.length));
+    }
+
+    static double[] distances(HyperPoint[] points, HyperPoint p) {
+        double[] res = new double[points.length];
+        for (int i = 0; i < points.length; i++)
+            res[i] = points[i].squareDistanceTo(p);
+        return res;
+    }
+
+    // The points in hs, HyperPoint has no equals(Object) so the set is by identity
+    static Set<HyperPoint> range(Collection<HyperPoint> points, HyperSpace hs) {
+        Set<HyperPoint> res = new HashSet<HyperPoint>();
+        for (HyperPoint q : points)
+            if (hs.contains(q))
+                res.add(q);
+        return res;
+    }
+
+    // Sorted coordinates of points, to compare answers made of equal but distinct points
+    static List<String> coords(Collection<HyperPoint> points) {
+        List<String> res = new ArrayList<String>();
+        for (HyperPoint q : points)
+            res.add(Arrays.toString(q.coords));
+        Collections.sort(res);
+        return res;
+    }
+}
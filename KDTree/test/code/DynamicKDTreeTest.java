@@ -0,0 +1,116 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * DynamicKDTree insert and delete, checked against a linear scan of a list
+ * holding the same points after every change.
+ * */
+public class DynamicKDTreeTest {
+
+    // Nearest distance, k nearest distances, range and count for a few random queries
+    static void check(DynamicKDTree tree, List<HyperPoint> points, Random r, int K) {
+        assertEquals(points.size(), tree.size());
+        for (int q = 0; q < 5; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 40);
+            HyperPoint n = tree.nearestPoint(p);
+            if (points.isEmpty())
+                assertNull(n);
+            else
+                assertEquals(BruteForce.nearest(points, p), n.squareDistanceTo(p), 0);
+            HyperPoint[] kn = tree.kNearest(p, 5);
+            assertTrue(Arrays.equals(BruteForce.kNearest(points, p, 5), BruteForce.distances(kn, p)));
+            HyperSpace hs = BruteForce.randomBox(r, K);
+            // a delete may remove any of several equal points, so points are compared by coordinates
+            List<String> expected = BruteForce.coords(BruteForce.range(points, hs));
+            assertEquals(expected, BruteForce.coords(tree.rangeQuery(hs)));
+            assertEquals(expected.size(), tree.rangeCount(hs));
+        }
+    }
+
+    // Removes one point of the list equal to p
+    static void remove(List<HyperPoint> points, HyperPoint p) {
+        for (int i = 0; i < points.size(); i++)
+            if (points.get(i).equals(p)) {
+                points.remove(i);
+                return;
+            }
+    }
+
+    @Test
+    public void deleteMatchesBruteForce() {
+        for (int K = 1; K <= 4; K++) {
+            Random r = new Random(K);
+            DynamicKDTree tree = new DynamicKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+            List<HyperPoint> points = new ArrayList<HyperPoint>();
+            for (HyperPoint p : BruteForce.randomPoints(r, 500, K, 10)) {
+                tree.insert(p);
+                points.add(p);
+            }
+            check(tree, points, r, K);
+            // mixed deletes of present and absent points, and inserts
+            for (int step = 0; step < 1500; step++) {
+                int op = r.nextInt(4);
+                if (op == 0) {
+                    HyperPoint p = BruteForce.randomPoint(r, K, 10);
+                    tree.insert(p);
+                    points.add(p);
+                } else if (op == 1 || points.isEmpty()) {
+                    HyperPoint p = BruteForce.randomPoint(r, K, 20);
+                    boolean present = false;
+                    for (HyperPoint q : points)
+                        present |= q.equals(p);
+                    assertEquals(present, tree.delete(p));
+                    remove(points, p);
+                } else {
+                    // a copy, delete matches on coordinates
+                    HyperPoint p = new HyperPoint(points.get(r.nextInt(points.size())));
+                    assertTrue(tree.delete(p));
+                    remove(points, p);
+                }
+                if (step % 50 == 0)
+                    check(tree, points, r, K);
+            }
+            check(tree, points, r, K);
+            // down to the empty tree
+            while (!points.isEmpty()) {
+                HyperPoint p = points.get(r.nextInt(points.size()));
+                assertTrue(tree.delete(p));
+                remove(points, p);
+                if (points.size() % 97 == 0)
+                    check(tree, points, r, K);
+            }
+            check(tree, points, r, K);
+            assertFalse(tree.delete(BruteForce.unit(K, 0.5)));
+        }
+    }
+
+    @Test
+    public void deleteAfterBulkBuild() {
+        int K = 3;
+        Random r = new Random(7);
+        HyperPoint[] all = BruteForce.randomPoints(r, 2000, K, 8);
+        DynamicKDTree tree = new DynamicKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+        tree.insertByMedianFinding(all.clone());
+        List<HyperPoint> points = new ArrayList<HyperPoint>(Arrays.asList(all));
+        check(tree, points, r, K);
+        for (int i = 0; i < 1500; i++) {
+            HyperPoint p = points.get(r.nextInt(points.size()));
+            assertTrue(tree.delete(p));
+            remove(points, p);
+            if (i % 100 == 0)
+                check(tree, points, r, K);
+        }
+        check(tree, points, r, K);
+    }
+}
@@ -0,0 +1,128 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * StaticKDTree and MappedKDTree, checked against a linear scan of the
+ * points, and the mapped file round trip.
+ * */
+public class ImplicitKDTreeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static StaticKDTree build(HyperPoint[] points, int K) {
+        StaticKDTree tree = new StaticKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+        tree.insertByMedianFinding(points);
+        return tree;
+    }
+
+    // Points are copies in these trees, so they are compared by coordinates
+    static void check(ImplicitKDTree tree, List<HyperPoint> points, Random r, int K) {
+        assertEquals(points.size(), tree.size());
+        for (int q = 0; q < 30; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 50);
+            int i = tree.nearestIndex(p);
+            if (points.isEmpty())
+                assertEquals(-1, i);
+            else
+                assertEquals(BruteForce.nearest(points, p), tree.point(i).squareDistanceTo(p), 0);
+            HyperSpace hs = BruteForce.randomBox(r, K);
+            List<String> expected = BruteForce.coords(BruteForce.range(points, hs));
+            assertEquals(expected, BruteForce.coords(tree.rangeQuery(hs)));
+            assertEquals(expected.size(), tree.rangeCount(hs));
+        }
+    }
+
+    @Test
+    public void staticAndMappedMatchBruteForce() throws IOException {
+        for (int K = 1; K <= 5; K++)
+            for (int n : new int[] { 0, 1, 2, 100, 3001 }) {
+                Random r = new Random(K * 10000 + n);
+                HyperPoint[] points = BruteForce.randomPoints(r, n, K, 12);
+                StaticKDTree tree = build(points, K);
+                check(tree, Arrays.asList(points), r, K);
+                File file = folder.newFile();
+                MappedKDTree.write(tree, file);
+                check(MappedKDTree.load(file), Arrays.asList(points), r, K);
+                // tiny segments, points of K > 1 then span two of them
+                for (int shift = 1; shift <= 4; shift++) {
+                    MappedKDTree mapped = MappedKDTree.load(file, shift);
+                    check(mapped, Arrays.asList(points), r, K);
+                    for (int i = 0; i < n; i++)
+                        assertTrue(Arrays.equals(tree.point(i).coords, mapped.point(i).coords));
+                }
+            }
+    }
+
+    // The bounds of a large K do not fit in the write buffer
+    @Test
+    public void largeDimension() throws IOException {
+        int K = 5000;
+        Random r = new Random(1);
+        HyperPoint[] points = BruteForce.randomPoints(r, 20, K, 4);
+        StaticKDTree tree = build(points, K);
+        File file = folder.newFile();
+        MappedKDTree.write(tree, file);
+        MappedKDTree mapped = MappedKDTree.load(file, 12);
+        for (int q = 0; q < 10; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 4);
+            assertEquals(BruteForce.nearest(Arrays.asList(points), p), mapped.point(mapped.nearestIndex(p)).squareDistanceTo(p), 0);
+        }
+    }
+
+    @Test
+    public void wrongDimensionLeavesTheTree() {
+        Random r = new Random(2);
+        HyperPoint[] points = BruteForce.randomPoints(r, 50, 2, 10);
+        StaticKDTree tree = build(points, 2);
+        HyperPoint[] bad = BruteForce.randomPoints(r, 10, 2, 10);
+        bad[7] = BruteForce.unit(3, 0.5);
+        try {
+            tree.insertByMedianFinding(bad);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        check(tree, Arrays.asList(points), r, 2);
+    }
+
+    @Test
+    public void corruptedFiles() throws IOException {
+        StaticKDTree tree = build(BruteForce.randomPoints(new Random(3), 10, 2, 10), 2);
+        File file = folder.newFile();
+        MappedKDTree.write(tree, file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // truncated coords, then a truncated header
+            raf.setLength(raf.length() - 8);
+            assertLoadFails(file);
+            raf.setLength(10);
+            assertLoadFails(file);
+        } finally {
+            raf.close();
+        }
+        assertLoadFails(folder.newFile());
+    }
+
+    static void assertLoadFails(File file) {
+        try {
+            MappedKDTree.load(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * LogarithmicKDTree, checked against a linear scan of the same points
+ * while the levels are merged by inserts and after bulk loads.
+ * */
+public class LogarithmicKDTreeTest {
+
+    static void check(LogarithmicKDTree tree, List<HyperPoint> points, Random r, int K) {
+        assertEquals(points.size(), tree.size());
+        // level i holds 2^i points exactly when bit i of size is set
+        for (int i = 0; i < 31; i++)
+            if ((tree.size() >> i & 1) == 0)
+                assertNull(tree.trees[i]);
+            else
+                assertEquals(1 << i, tree.points[i].length);
+        for (int q = 0; q < 5; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 50);
+            HyperPoint n = tree.nearestPoint(p);
+            if (points.isEmpty())
+                assertNull(n);
+            else
+                assertEquals(BruteForce.nearest(points, p), n.squareDistanceTo(p), 0);
+            assertTrue(Arrays.equals(BruteForce.kNearest(points, p, 4), BruteForce.distances(tree.kNearest(p, 4), p)));
+            HyperSpace hs = BruteForce.randomBox(r, K);
+            assertEquals(BruteForce.range(points, hs), tree.rangeQuery(hs));
+            assertEquals(BruteForce.range(points, hs).size(), tree.rangeCount(hs));
+        }
+    }
+
+    @Test
+    public void insertsMatchBruteForce() {
+        for (int K = 1; K <= 3; K++) {
+            Random r = new Random(K);
+            LogarithmicKDTree tree = new LogarithmicKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+            List<HyperPoint> points = new ArrayList<HyperPoint>();
+            check(tree, points, r, K);
+            for (int i = 0; i < 1100; i++) {
+                HyperPoint p = BruteForce.randomPoint(r, K, 15);
+                tree.insert(p);
+                points.add(p);
+                // every size up to 70, then around the carries into a new level
+                int n = points.size();
+                if (n <= 70 || Integer.bitCount(n - 1) <= 1 || Integer.bitCount(n) == 1 || n % 97 == 0)
+                    check(tree, points, r, K);
+            }
+        }
+    }
+
+    @Test
+    public void bulkLoadMatchesBruteForce() {
+        int K = 2;
+        Random r = new Random(5);
+        for (int n : new int[] { 0, 1, 2, 7, 64, 1000, 1023 }) {
+            HyperPoint[] all = BruteForce.randomPoints(r, n, K, 15);
+            LogarithmicKDTree tree = new LogarithmicKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1), all);
+            List<HyperPoint> points = new ArrayList<HyperPoint>(Arrays.asList(all));
+            check(tree, points, r, K);
+            // inserts after a bulk load carry through the loaded levels
+            for (int i = 0; i < 20; i++) {
+                HyperPoint p = BruteForce.randomPoint(r, K, 15);
+                tree.insert(p);
+                points.add(p);
+                check(tree, points, r, K);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/*
+ * QueryCache answers, checked against a linear scan of the tree's points
+ * while the tree changes under the cache.
+ * */
+public class QueryCacheTest {
+    static final int K = 2;
+
+    // Repeats come from a small pool of queries, so the cache is hit
+    static void check(QueryCache cache, List<HyperPoint> points, HyperPoint[] queries, HyperSpace[] boxes, Random r) {
+        for (int q = 0; q < 40; q++) {
+            HyperPoint p = queries[r.nextInt(queries.length)];
+            assertEquals(BruteForce.nearest(points, p), cache.nearestPoint(p).squareDistanceTo(p), 0);
+            // the nearest point of the snapped query is at most quantum * sqrt(K) farther, up to rounding
+            double d = Math.sqrt(BruteForce.nearest(points, p)) + cache.quantum * Math.sqrt(K);
+            assertTrue(Math.sqrt(cache.approximateNearestPoint(p).squareDistanceTo(p)) <= d + 1e-12);
+            HyperSpace hs = boxes[r.nextInt(boxes.length)];
+            Set<HyperPoint> expected = BruteForce.range(points, hs);
+            assertEquals(expected, cache.rangeQuery(hs));
+            assertEquals(expected.size(), cache.rangeCount(hs));
+            final List<HyperPoint> visited = new ArrayList<HyperPoint>();
+            cache.rangeQuery(hs, new PointVisitor<HyperPoint>() {
+                @Override
+                public boolean visit(HyperPoint p) {
+                    visited.add(p);
+                    return true;
+                }
+            });
+            assertEquals(expected.size(), visited.size());
+            assertTrue(expected.containsAll(visited));
+        }
+    }
+
+    @Test
+    public void answersFollowTheTree() {
+        for (double quantum : new double[] { 0, 0.1, 0.03 }) {
+            Random r = new Random(Double.doubleToLongBits(quantum));
+            DynamicKDTree tree = new DynamicKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+            List<HyperPoint> points = new ArrayList<HyperPoint>();
+            for (HyperPoint p : BruteForce.randomPoints(r, 300, K, 20)) {
+                tree.insert(p);
+                points.add(p);
+            }
+            QueryCache cache = new QueryCache(tree, 50, quantum);
+            // queries between the points, boxes on the grid lines where snapping rounds
+            HyperPoint[] queries = BruteForce.randomPoints(r, 30, K, 20);
+            for (HyperPoint q : queries)
+                for (int k = 0; k < K; k++)
+                    q.coords[k] = Math.min(q.coords[k] + 0.01, 0.99);
+            HyperSpace[] boxes = new HyperSpace[30];
+            for (int i = 0; i < boxes.length; i++)
+                boxes[i] = i % 2 == 0 ? BruteForce.randomBox(r, K) : new HyperSpace(BruteForce.randomPoint(r, K, 10), BruteForce.unit(K, 0.7));
+            check(cache, points, queries, boxes, r);
+            assertTrue(cache.hits() > 0);
+            assertTrue(cache.size() <= 50);
+            // every insert and delete must be seen by the next queries
+            for (int step = 0; step < 200; step++) {
+                HyperPoint p = points.get(r.nextInt(points.size()));
+                if (r.nextBoolean() || BruteForce.range(points, new HyperSpace(p, p)).size() > 1) {
+                    // closer to a cached query than any other point, earlier ones included
+                    HyperPoint q = queries[r.nextInt(queries.length)];
+                    cache.nearestPoint(q);
+                    p = new HyperPoint(q);
+                    p.coords[0] += 1e-3 / (step + 2);
+                    tree.insert(p);
+                    points.add(p);
+                    assertSame(p, cache.nearestPoint(q));
+                } else {
+                    // a point with no copy, so delete removes this one
+                    assertTrue(tree.delete(p));
+                    points.remove(p);
+                }
+                check(cache, points, queries, boxes, r);
+            }
+        }
+    }
+
+    @Test
+    public void rangeSetsAreNotShared() {
+        KDTree tree = new KDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1));
+        HyperPoint[] all = BruteForce.randomPoints(new Random(1), 100, K, 10);
+        tree.insertByMedianFinding(all.clone());
+        HyperSpace hs = new HyperSpace(BruteForce.unit(K, 0.2), BruteForce.unit(K, 0.8));
+        for (double quantum : new double[] { 0, 0.1 }) {
+            QueryCache cache = new QueryCache(tree, 10, quantum);
+            Set<HyperPoint> first = cache.rangeQuery(hs);
+            int n = first.size();
+            assertTrue(n > 0);
+            first.clear();
+            assertEquals(n, cache.rangeQuery(hs).size());
+            assertEquals(1, cache.hits());
+        }
+    }
+
+    // Grid lines rounded past the bound, as floor(1.7 / 0.1) * 0.1 > 1.7, must not lose the points on it
+    @Test
+    public void snappedBoxesKeepBoundaryPoints() {
+        double quantum = 0.1;
+        KDTree tree = new KDTree(1, BruteForce.unit(1, -10), BruteForce.unit(1, 10));
+        List<HyperPoint> points = new ArrayList<HyperPoint>();
+        for (int i = -1000; i <= 1000; i++) {
+            HyperPoint p = new HyperPoint(new double[] { i / 100.0 });
+            tree.insert(p);
+            points.add(p);
+        }
+        QueryCache cache = new QueryCache(tree, 1000, quantum);
+        for (int i = -1000; i <= 1000; i++) {
+            double c = i / 100.0;
+            assertFalse(cache.floor(c) > c);
+            assertFalse(cache.ceil(c) < c);
+            HyperSpace hs = new HyperSpace(new HyperPoint(new double[] { c }), new HyperPoint(new double[] { c + 0.3 }));
+            assertEquals(BruteForce.range(points, hs), cache.rangeQuery(hs));
+        }
+    }
+}
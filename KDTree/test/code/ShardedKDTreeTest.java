@@ -0,0 +1,110 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/*
+ * ShardedKDTree built, grown, rebuilt and queried from several threads,
+ * checked against a linear scan of the same points.
+ * */
+public class ShardedKDTreeTest {
+
+    static void check(ShardedKDTree tree, List<HyperPoint> points, Random r, int K) {
+        assertEquals(points.size(), tree.size());
+        for (int q = 0; q < 20; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 50);
+            assertEquals(BruteForce.nearest(points, p), tree.nearestPoint(p).squareDistanceTo(p), 0);
+            assertTrue(Arrays.equals(BruteForce.kNearest(points, p, 6), BruteForce.distances(tree.kNearest(p, 6), p)));
+            HyperSpace hs = BruteForce.randomBox(r, K);
+            assertEquals(BruteForce.range(points, hs), tree.rangeQuery(hs));
+            assertEquals(BruteForce.range(points, hs).size(), tree.rangeCount(hs));
+        }
+    }
+
+    static boolean alive(Thread[] threads) {
+        for (Thread t : threads)
+            if (t.isAlive())
+                return true;
+        return false;
+    }
+
+    @Test
+    public void queriesMatchBruteForce() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int K = 1; K <= 3; K++)
+                for (int shards : new int[] { 1, 3, 8 }) {
+                    Random r = new Random(K * 10 + shards);
+                    HyperPoint[] all = BruteForce.randomPoints(r, 3000, K, 12);
+                    List<HyperPoint> points = new ArrayList<HyperPoint>(Arrays.asList(all));
+                    ShardedKDTree tree = new ShardedKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1), shards, all, pool);
+                    check(tree, points, r, K);
+                    for (int i = 0; i < 1000; i++) {
+                        HyperPoint p = BruteForce.randomPoint(r, K, 12);
+                        tree.insert(p);
+                        points.add(p);
+                    }
+                    check(tree, points, r, K);
+                    tree.rebuild(r.nextInt(tree.shards()));
+                    check(tree, points, r, K);
+                    tree.rebuild();
+                    check(tree, points, r, K);
+                }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Inserts and rebuilds running together must lose no point
+    @Test
+    public void concurrentInsertsAndRebuilds() throws InterruptedException {
+        final int K = 2;
+        final Random r = new Random(3);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            HyperPoint[] all = BruteForce.randomPoints(r, 2000, K, 100);
+            final ShardedKDTree tree = new ShardedKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1), 4, all, pool);
+            final List<HyperPoint> points = Collections.synchronizedList(new ArrayList<HyperPoint>(Arrays.asList(all)));
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final Random tr = new Random(t);
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 2000; i++) {
+                            HyperPoint p = BruteForce.randomPoint(tr, K, 100);
+                            tree.insert(p);
+                            points.add(p);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            // rebuild shards for as long as the writers run
+            for (int i = 0; alive(threads); i++) {
+                tree.rebuild(i % tree.shards());
+                HyperPoint p = BruteForce.randomPoint(r, K, 100);
+                // every point is in the tree before it is in the list
+                List<HyperPoint> before;
+                synchronized (points) {
+                    before = new ArrayList<HyperPoint>(points);
+                }
+                assertTrue(tree.nearestPoint(p).squareDistanceTo(p) <= BruteForce.nearest(before, p));
+            }
+            for (Thread t : threads)
+                t.join();
+            check(tree, points, r, K);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package code;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/*
+ * SlidingWindowKDTree, checked against a linear scan of the points whose
+ * partition is still in the window, with late and out of order inserts.
+ * */
+public class SlidingWindowKDTreeTest {
+    static final int K = 2;
+
+    // Points with their times, in insert order
+    List<HyperPoint> points = new ArrayList<HyperPoint>();
+    List<Long> times = new ArrayList<Long>();
+
+    // The points kept by the window at now, as documented : those whose partition ends after now - window
+    List<HyperPoint> live(long now, long window, long span) {
+        List<HyperPoint> res = new ArrayList<HyperPoint>();
+        for (int i = 0; i < points.size(); i++) {
+            long t = times.get(i);
+            if ((Math.floorDiv(t, span) + 1) * span - 1 > now - window) {
+                // kept at least window, and less than window + span
+                assertTrue(now - t < window + span);
+                res.add(points.get(i));
+            } else
+                assertTrue(now - t >= window);
+        }
+        return res;
+    }
+
+    static void check(SlidingWindowKDTree tree, List<HyperPoint> live, Random r) {
+        assertEquals(live.size(), tree.size());
+        for (int q = 0; q < 5; q++) {
+            HyperPoint p = BruteForce.randomPoint(r, K, 50);
+            HyperPoint n = tree.nearestPoint(p);
+            if (live.isEmpty())
+                assertNull(n);
+            else
+                assertEquals(BruteForce.nearest(live, p), n.squareDistanceTo(p), 0);
+            HyperSpace hs = BruteForce.randomBox(r, K);
+            assertEquals(BruteForce.range(live, hs), tree.rangeQuery(hs));
+            assertEquals(BruteForce.range(live, hs).size(), tree.rangeCount(hs));
+        }
+    }
+
+    @Test
+    public void windowMatchesBruteForce() {
+        long[][] configs = { { 100, 10 }, { 100, 100 }, { 64, 7 } };
+        for (long[] c : configs) {
+            long window = c[0], span = c[1];
+            points.clear();
+            times.clear();
+            Random r = new Random(window * 31 + span);
+            SlidingWindowKDTree tree = new SlidingWindowKDTree(K, BruteForce.unit(K, 0), BruteForce.unit(K, 1), window, span);
+            // the clock, and the largest time the tree has seen
+            long clock = -50, now = Long.MIN_VALUE;
+            for (int step = 0; step < 3000; step++) {
+                clock += r.nextInt(3);
+                // some points arrive late, some too late to be kept
+                long t = r.nextInt(8) == 0 ? clock - r.nextInt((int) (window + 2 * span)) : clock;
+                now = Math.max(now, t);
+                HyperPoint p = BruteForce.randomPoint(r, K, 20);
+                long last = (Math.floorDiv(t, span) + 1) * span - 1;
+                boolean kept = last > now - window;
+                assertEquals(kept, tree.insert(p, t));
+                if (kept) {
+                    points.add(p);
+                    times.add(t);
+                }
+                if (step % 25 == 0)
+                    check(tree, live(now, window, span), r);
+                // idle time with no insert
+                if (step % 500 == 499) {
+                    clock += window / 2;
+                    now = clock;
+                    tree.expire(now);
+                    check(tree, live(now, window, span), r);
+                }
+            }
+            now = clock + window + span;
+            tree.expire(now);
+            assertEquals(0, tree.size());
+            check(tree, live(now, window, span), r);
+        }
+    }
+}
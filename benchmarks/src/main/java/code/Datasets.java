@@ -0,0 +1,74 @@
+package code;
+
+import java.util.Random;
+
+/*
+ * Benchmark datasets, all coordinates are in the unit hypercube [0, 1]
+ * uniform : independent uniform coordinates
+ * clustered : gaussian blobs around a few random centers
+ * skewed : every coordinate is u^4, so most points crowd near the origin
+ * */
+final class Datasets {
+    static final int CLUSTERS = 16;
+    static final double SPREAD = 0.02;
+
+    private Datasets() {
+    }
+
+    static HyperPoint[] hyperPoints(String distribution, int n, int K, long seed) {
+        Random rnd = new Random(seed);
+        double[][] centers = new double[CLUSTERS][K];
+        for (double[] c : centers)
+            for (int k = 0; k < K; k++)
+                c[k] = rnd.nextDouble();
+        HyperPoint[] res = new HyperPoint[n];
+        double[] crds = new double[K];
+        for (int i = 0; i < n; i++) {
+            double[] c = centers[rnd.nextInt(CLUSTERS)];
+            for (int k = 0; k < K; k++)
+                crds[k] = coord(distribution, rnd, c[k]);
+            res[i] = new HyperPoint(crds);
+        }
+        return res;
+    }
+
+    private static double coord(String distribution, Random rnd, double center) {
+        if ("uniform".equals(distribution))
+            return rnd.nextDouble();
+        else if ("clustered".equals(distribution))
+            return Math.min(1, Math.max(0, center + rnd.nextGaussian() * SPREAD));
+        else if ("skewed".equals(distribution)) {
+            double u = rnd.nextDouble();
+            return u * u * u * u;
+        }
+        throw new IllegalArgumentException(distribution);
+    }
+
+    static Point2D[] points2D(String distribution, int n, long seed) {
+        HyperPoint[] hps = hyperPoints(distribution, n, 2, seed);
+        Point2D[] res = new Point2D[n];
+        for (int i = 0; i < n; i++)
+            res[i] = new Point2D(hps[i].coords[0], hps[i].coords[1]);
+        return res;
+    }
+
+    static Point3D[] points3D(String distribution, int n, long seed) {
+        HyperPoint[] hps = hyperPoints(distribution, n, 3, seed);
+        Point3D[] res = new Point3D[n];
+        for (int i = 0; i < n; i++)
+            res[i] = new Point3D(hps[i].coords[0], hps[i].coords[1], hps[i].coords[2]);
+        return res;
+    }
+
+    // Side of a query box expected to hold about hits points of a uniform set
+    static double rangeSide(int n, int K, int hits) {
+        return Math.min(1, Math.pow((double) hits / n, 1.0 / K));
+    }
+
+    static HyperPoint unit(int K, double v) {
+        double[] crds = new double[K];
+        for (int k = 0; k < K; k++)
+            crds[k] = v;
+        return new HyperPoint(crds);
+    }
+}
@@ -0,0 +1,82 @@
+package code;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * KDTree construction : single point insert and the bulk builds
+ * (median finding, presort, parallel median finding)
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class KDTreeBuildBenchmark {
+    @Param({ "uniform", "clustered", "skewed" })
+    String distribution;
+
+    @Param({ "1000", "100000", "10000000" })
+    int size;
+
+    @Param({ "2", "3", "8" })
+    int dims;
+
+    HyperPoint[] points, work;
+    HyperPoint min, max;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        points = Datasets.hyperPoints(distribution, size, dims, 42);
+        min = Datasets.unit(dims, 0);
+        max = Datasets.unit(dims, 1);
+    }
+
+    // The bulk builds reorder their input
+    @Setup(Level.Invocation)
+    public void copy() {
+        work = points.clone();
+    }
+
+    @Benchmark
+    public KDTree insert() {
+        KDTree kd = new KDTree(dims, min, max);
+        for (HyperPoint p : work)
+            kd.insert(p);
+        return kd;
+    }
+
+    @Benchmark
+    public KDTree insertByMedianFinding() {
+        KDTree kd = new KDTree(dims, min, max);
+        kd.insertByMedianFinding(work);
+        return kd;
+    }
+
+    @Benchmark
+    public KDTree insertByPreSort() {
+        KDTree kd = new KDTree(dims, min, max);
+        kd.insertByPreSort(work);
+        return kd;
+    }
+
+    @Benchmark
+    public KDTree insertByMedianFindingParallel() {
+        KDTree kd = new KDTree(dims, min, max);
+        kd.insertByMedianFindingParallel(work);
+        return kd;
+    }
+}
@@ -0,0 +1,92 @@
+package code;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * KDTree queries on a median built tree : nearestPoint and rangeQuery, and
+ * the whole query set as a batch in given and in Morton order.
+ * Throughput and latency percentiles (sample time) are reported.
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class KDTreeQueryBenchmark {
+    static final int QUERIES = 1 << 12;
+
+    @Param({ "uniform", "clustered", "skewed" })
+    String distribution;
+
+    @Param({ "1000", "100000", "10000000" })
+    int size;
+
+    @Param({ "2", "3", "8" })
+    int dims;
+
+    // Expected number of points in a range query on a uniform set
+    @Param({ "64" })
+    int rangeHits;
+
+    // Points per leaf
+    @Param({ "1", "16" })
+    int bucketSize;
+
+    KDTree kd;
+    HyperPoint[] queries;
+    HyperSpace[] ranges;
+    int next;
+
+    @Setup(Level.Trial)
+    public void build() {
+        kd = new KDTree(dims, Datasets.unit(dims, 0), Datasets.unit(dims, 1), bucketSize);
+        kd.insertByMedianFinding(Datasets.hyperPoints(distribution, size, dims, 42));
+        // Queries follow the distribution of the data
+        queries = Datasets.hyperPoints(distribution, QUERIES, dims, 7);
+        ranges = new HyperSpace[QUERIES];
+        double side = Datasets.rangeSide(size, dims, rangeHits);
+        for (int i = 0; i < QUERIES; i++) {
+            HyperPoint hi = new HyperPoint(queries[i]);
+            for (int k = 0; k < dims; k++)
+                hi.coords[k] += side;
+            ranges[i] = new HyperSpace(queries[i], hi);
+        }
+    }
+
+    @Benchmark
+    public HyperPoint nearestPoint() {
+        next = (next + 1) & (QUERIES - 1);
+        return kd.nearestPoint(queries[next]);
+    }
+
+    @Benchmark
+    public HyperPoint[] nearestPoints() {
+        return kd.nearestPoints(queries);
+    }
+
+    @Benchmark
+    public HyperPoint[] nearestPointsOrdered() {
+        return kd.nearestPointsOrdered(queries);
+    }
+
+    @Benchmark
+    public Set<HyperPoint> rangeQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return kd.rangeQuery(ranges[next]);
+    }
+}
@@ -0,0 +1,95 @@
+package code;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * OctTree : single point insert of the whole set and queryRange,
+ * compared with the Morton ordered LinearOctTree
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class OctTreeBenchmark {
+    static final int QUERIES = 1 << 12;
+
+    @Param({ "uniform", "clustered", "skewed" })
+    String distribution;
+
+    @Param({ "1000", "100000", "10000000" })
+    int size;
+
+    @Param({ "4", "16" })
+    int nodeCapacity;
+
+    @Param({ "64" })
+    int rangeHits;
+
+    Point3D[] points;
+    OctTree oct;
+    LinearOctTree linear;
+    Cubiod[] ranges;
+    int next;
+
+    @Setup(Level.Trial)
+    public void build() {
+        points = Datasets.points3D(distribution, size, 42);
+        oct = new OctTree(new Cubiod(new Point3D(0, 0, 0), 1), nodeCapacity);
+        for (Point3D p : points)
+            oct.insert(p);
+        linear = new LinearOctTree(new Cubiod(new Point3D(0, 0, 0), 1), nodeCapacity);
+        linear.insertAll(points);
+        Point3D[] corners = Datasets.points3D(distribution, QUERIES, 7);
+        double side = Datasets.rangeSide(size, 3, rangeHits);
+        ranges = new Cubiod[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+            ranges[i] = new Cubiod(corners[i], side);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public OctTree insert() {
+        OctTree t = new OctTree(new Cubiod(new Point3D(0, 0, 0), 1), nodeCapacity);
+        for (Point3D p : points)
+            t.insert(p);
+        return t;
+    }
+
+    @Benchmark
+    public Set<Point3D> queryRange() {
+        next = (next + 1) & (QUERIES - 1);
+        return oct.queryRange(ranges[next]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public LinearOctTree linearInsertAll() {
+        LinearOctTree t = new LinearOctTree(new Cubiod(new Point3D(0, 0, 0), 1), nodeCapacity);
+        t.insertAll(points);
+        return t;
+    }
+
+    @Benchmark
+    public Set<Point3D> linearQueryRange() {
+        next = (next + 1) & (QUERIES - 1);
+        return linear.queryRange(ranges[next]);
+    }
+}
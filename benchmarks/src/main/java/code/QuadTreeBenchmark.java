@@ -0,0 +1,95 @@
+package code;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * QuadTree : single point insert of the whole set and queryRange,
+ * compared with the Morton ordered LinearQuadTree
+ * */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class QuadTreeBenchmark {
+    static final int QUERIES = 1 << 12;
+
+    @Param({ "uniform", "clustered", "skewed" })
+    String distribution;
+
+    @Param({ "1000", "100000", "10000000" })
+    int size;
+
+    @Param({ "4", "16" })
+    int nodeCapacity;
+
+    @Param({ "64" })
+    int rangeHits;
+
+    Point2D[] points;
+    QuadTree qt;
+    LinearQuadTree linear;
+    Rect[] ranges;
+    int next;
+
+    @Setup(Level.Trial)
+    public void build() {
+        points = Datasets.points2D(distribution, size, 42);
+        qt = new QuadTree(new Rect(new Point2D(0, 0), 1), nodeCapacity);
+        for (Point2D p : points)
+            qt.insert(p);
+        linear = new LinearQuadTree(new Rect(new Point2D(0, 0), 1), nodeCapacity);
+        linear.insertAll(points);
+        Point2D[] corners = Datasets.points2D(distribution, QUERIES, 7);
+        double side = Datasets.rangeSide(size, 2, rangeHits);
+        ranges = new Rect[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+            ranges[i] = new Rect(corners[i], side);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public QuadTree insert() {
+        QuadTree t = new QuadTree(new Rect(new Point2D(0, 0), 1), nodeCapacity);
+        for (Point2D p : points)
+            t.insert(p);
+        return t;
+    }
+
+    @Benchmark
+    public Set<Point2D> queryRange() {
+        next = (next + 1) & (QUERIES - 1);
+        return qt.queryRange(ranges[next]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public LinearQuadTree linearInsertAll() {
+        LinearQuadTree t = new LinearQuadTree(new Rect(new Point2D(0, 0), 1), nodeCapacity);
+        t.insertAll(points);
+        return t;
+    }
+
+    @Benchmark
+    public Set<Point2D> linearQueryRange() {
+        next = (next + 1) & (QUERIES - 1);
+        return linear.queryRange(ranges[next]);
+    }
+}